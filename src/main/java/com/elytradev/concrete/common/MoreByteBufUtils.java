@@ -43,7 +43,7 @@ public class MoreByteBufUtils {
 	}
 	
 	public static int fromZigZag(int val) {
-		return (val >> 1) ^ (-(val & 1));
+		return (val >>> 1) ^ (-(val & 1));
 	}
 	
 	public static void writeZigZagVarInt(ByteBuf out, int val, int maxSize) {
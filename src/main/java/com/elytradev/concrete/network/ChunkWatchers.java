@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.server.management.PlayerChunkMapEntry;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.WorldServer;
+
+/**
+ * Looks up who is watching a chunk straight from its PlayerChunkMapEntry,
+ * rather than asking about every player in the world.
+ */
+final class ChunkWatchers {
+	/**
+	 * @return the entry for the chunk containing the given position, if that
+	 * 		chunk has been sent to anyone. Never loads the chunk.
+	 */
+	@Nullable
+	public static PlayerChunkMapEntry getEntry(WorldServer world, BlockPos pos) {
+		PlayerChunkMapEntry entry = world.getPlayerChunkMap().getEntry(pos.getX() >> 4, pos.getZ() >> 4);
+		if (entry == null || !entry.isSentToPlayers()) return null;
+		return entry;
+	}
+	
+	/**
+	 * @return an unmodifiable view of the entry's own list of watchers
+	 */
+	public static List<EntityPlayerMP> getPlayers(PlayerChunkMapEntry entry) {
+		return entry.getWatchingPlayers();
+	}
+	
+	private ChunkWatchers() {}
+}
@@ -0,0 +1,671 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.elytradev.concrete.common.ConcreteLog;
+import com.elytradev.concrete.common.MoreByteBufUtils;
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Primitives;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+/**
+ * Spins a dedicated {@link MessageCodec} class for a Message type, which reads
+ * and writes its fields with plain field instructions and writes primitives
+ * straight to the ByteBuf, rather than going through {@link WireField}.
+ * <p>
+ * The wire format is identical to the one produced by {@link ReflectiveCodec}.
+ */
+final class CodecGenerator {
+	
+	private static final String CODEC = Type.getInternalName(MessageCodec.class);
+	private static final String MESSAGE = Type.getInternalName(Message.class);
+	private static final String MARSHALLER = Type.getInternalName(Marshaller.class);
+	private static final String MARSHALLER_DESC = Type.getDescriptor(Marshaller.class);
+	private static final String BYTEBUF = Type.getInternalName(ByteBuf.class);
+	private static final String BYTEBUF_DESC = Type.getDescriptor(ByteBuf.class);
+	private static final String EXCEPTION = Type.getInternalName(BadMessageException.class);
+	private static final String PACKED = Type.getInternalName(PackedMarshaller.class);
+	private static final String LONG_PACKED = Type.getInternalName(PackedMarshaller.LongPacked.class);
+	private static final String DOUBLE_PACKED = Type.getInternalName(PackedMarshaller.DoublePacked.class);
+	
+	private static final class PrimitiveOp {
+		public final String owner;
+		public final boolean isStatic;
+		public final String writeName;
+		public final Type writeType;
+		public final String readName;
+		public final Type readType;
+		public PrimitiveOp(Class<?> owner, boolean isStatic, String writeName, Class<?> writeType, String readName, Class<?> readType) {
+			this.owner = Type.getInternalName(owner);
+			this.isStatic = isStatic;
+			this.writeName = writeName;
+			this.writeType = Type.getType(writeType);
+			this.readName = readName;
+			this.readType = Type.getType(readType);
+		}
+	}
+	
+	private static final Map<Marshaller<?>, PrimitiveOp> primitiveOps = Maps.newIdentityHashMap();
+	
+	static {
+		putOp(DefaultMarshallers.UINT8, "writeByte", int.class, "readUnsignedByte", short.class);
+		putOp(DefaultMarshallers.INT8, "writeByte", int.class, "readByte", byte.class);
+		putOp(DefaultMarshallers.UINT16, "writeShort", int.class, "readUnsignedShort", int.class);
+		putOp(DefaultMarshallers.CHAR, "writeChar", int.class, "readChar", char.class);
+		putOp(DefaultMarshallers.INT16, "writeShort", int.class, "readShort", short.class);
+		putOp(DefaultMarshallers.UINT24, "writeMedium", int.class, "readUnsignedMedium", int.class);
+		putOp(DefaultMarshallers.INT24, "writeMedium", int.class, "readMedium", int.class);
+		putOp(DefaultMarshallers.UINT32, "writeInt", int.class, "readUnsignedInt", long.class);
+		putOp(DefaultMarshallers.INT32, "writeInt", int.class, "readInt", int.class);
+		putOp(DefaultMarshallers.INT64, "writeLong", long.class, "readLong", long.class);
+		putOp(DefaultMarshallers.FLOAT, "writeFloat", float.class, "readFloat", float.class);
+		putOp(DefaultMarshallers.DOUBLE, "writeDouble", double.class, "readDouble", double.class);
+		primitiveOps.put(DefaultMarshallers.VARINT, new PrimitiveOp(ByteBufUtils.class, true, "writeVarInt", int.class, "readVarInt", int.class));
+		primitiveOps.put(DefaultMarshallers.VARINT_ZIGZAG, new PrimitiveOp(MoreByteBufUtils.class, true, "writeZigZagVarInt", int.class, "readZigZagVarInt", int.class));
+	}
+	
+	private static void putOp(Marshaller<?> m, String writeName, Class<?> writeType, String readName, Class<?> readType) {
+		primitiveOps.put(m, new PrimitiveOp(ByteBuf.class, false, writeName, writeType, readName, readType));
+	}
+	
+	
+	private static final class CodecClassLoader extends ClassLoader {
+		public CodecClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+		
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+	
+	/**
+	 * @return a generated codec for the given class, or null if the class
+	 * 		cannot be accessed directly and must use the reflective path
+	 */
+	public static MessageCodec generate(Class<? extends Message> clazz, List<WireField<?>> fields) {
+		if (!Modifier.isPublic(clazz.getModifiers())) {
+			ConcreteLog.debug("Not generating a codec for {}, as it is not public", clazz);
+			return null;
+		}
+		for (WireField<?> wf : fields) {
+			Field f = wf.getField();
+			if (!Modifier.isPublic(f.getModifiers()) || Modifier.isFinal(f.getModifiers())
+					|| !Modifier.isPublic(f.getDeclaringClass().getModifiers())) {
+				ConcreteLog.debug("Not generating a codec for {}, as field {} is not public and non-final", clazz, f.getName());
+				return null;
+			}
+			if (wf.isPacked() && wf.getType().isPrimitive() && packedOwner(wf) == null) {
+				throw new BadMessageException("Field " + f.getDeclaringClass().getName() + "." + f.getName() + " is a primitive, but its marshaller "
+						+ wf.getMarshaller().getClass().getName() + " can only pack objects");
+			}
+		}
+		try {
+			List<Marshaller<?>> refs = Lists.newArrayList();
+			String name = clazz.getName() + "$$ConcreteCodec";
+			byte[] bytes = new Generator(clazz, name.replace('.', '/'), fields, refs).generate();
+			Class<?> codecClass = new CodecClassLoader(clazz.getClassLoader()).define(name, bytes);
+			return (MessageCodec) codecClass.getConstructor(Marshaller[].class).newInstance((Object) refs.toArray(new Marshaller<?>[refs.size()]));
+		} catch (Throwable t) {
+			ConcreteLog.warn("Failed to generate a codec for {}, falling back to reflection", clazz, t);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the class a packed primitive field's marshaller is called
+	 * 		through without boxing, or null if it can't be
+	 */
+	private static String packedOwner(WireField<?> wf) {
+		if (wf.getMarshaller() instanceof PackedMarshaller.DoublePacked) return DOUBLE_PACKED;
+		if (wf.getMarshaller() instanceof PackedMarshaller.LongPacked) return LONG_PACKED;
+		return null;
+	}
+	
+	private static final class Generator {
+		private final String owner;
+		private final String name;
+		private final List<WireField<?>> fields;
+		private final List<Marshaller<?>> refs;
+		private final Map<WireField<?>, Integer> refIndices = Maps.newHashMap();
+		private final Map<WireField<?>, Integer> bitIndices = Maps.newHashMap();
+		/**
+		 * The index in the header of each packed field's value, which come
+		 * after all the single bits.
+		 */
+		private final Map<WireField<?>, Integer> packedIndices = Maps.newHashMap();
+		/**
+		 * The local each packed field's value is worked out into by encode,
+		 * before the header is written.
+		 */
+		private final Map<WireField<?>, Integer> packedLocals = Maps.newHashMap();
+		private final int headerBytes;
+		
+		public Generator(Class<?> clazz, String name, List<WireField<?>> fields, List<Marshaller<?>> refs) {
+			this.owner = Type.getInternalName(clazz);
+			this.name = name;
+			this.fields = fields;
+			this.refs = refs;
+			int bits = 0;
+			for (WireField<?> wf : fields) {
+				if (wf.getType() == Boolean.TYPE || wf.isOptional()) {
+					bitIndices.put(wf, bits++);
+				}
+				if (wf.getType() != Boolean.TYPE && !(wf.getType().isPrimitive() && primitiveOps.containsKey(wf.getMarshaller()))) {
+					refIndices.put(wf, refs.size());
+					refs.add(wf.getMarshaller());
+				}
+			}
+			for (WireField<?> wf : fields) {
+				if (wf.isPacked()) {
+					packedIndices.put(wf, bits);
+					packedLocals.put(wf, 6 + (packedLocals.size() * 2));
+					bits += wf.getPackedBits();
+				}
+			}
+			headerBytes = (bits + 7) / 8;
+		}
+		
+		public byte[] generate() {
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+				@Override
+				protected String getCommonSuperClass(String type1, String type2) {
+					return "java/lang/Object";
+				}
+			};
+			cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, "java/lang/Object", new String[] { CODEC });
+			for (int i = 0; i < refs.size(); i++) {
+				cw.visitField(ACC_PRIVATE | ACC_FINAL, "m" + i, MARSHALLER_DESC, null, null).visitEnd();
+			}
+			generateConstructor(cw);
+			generateEncode(cw);
+			generateDecode(cw);
+			cw.visitEnd();
+			return cw.toByteArray();
+		}
+		
+		private void generateConstructor(ClassWriter cw) {
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "([" + MARSHALLER_DESC + ")V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+			for (int i = 0; i < refs.size(); i++) {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitVarInsn(ALOAD, 1);
+				pushInt(mv, i);
+				mv.visitInsn(AALOAD);
+				mv.visitFieldInsn(PUTFIELD, name, "m" + i, MARSHALLER_DESC);
+			}
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		
+		// locals: 0 this, 1 message, 2 out, 3 typed message, 4 header accumulator, 5 field value, 6+ packed values
+		private void generateEncode(ClassWriter cw) {
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "encode", "(L" + MESSAGE + ";" + BYTEBUF_DESC + ")V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitTypeInsn(CHECKCAST, owner);
+			mv.visitVarInsn(ASTORE, 3);
+			for (WireField<?> wf : fields) {
+				if (!wf.isPacked()) continue;
+				Type fieldType = Type.getType(wf.getType());
+				if (wf.getType().isPrimitive()) {
+					String packed = packedOwner(wf);
+					loadMarshaller(mv, refIndices.get(wf));
+					mv.visitTypeInsn(CHECKCAST, packed);
+					getField(mv, 3, wf);
+					if (DOUBLE_PACKED.equals(packed)) {
+						convert(mv, fieldType, Type.DOUBLE_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, packed, "packDouble", "(D)J", false);
+					} else {
+						convert(mv, fieldType, Type.LONG_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, packed, "packLong", "(J)J", false);
+					}
+				} else {
+					getField(mv, 3, wf);
+					mv.visitVarInsn(ASTORE, 5);
+					if (!wf.isOptional()) {
+						Label present = new Label();
+						mv.visitVarInsn(ALOAD, 5);
+						mv.visitJumpInsn(IFNONNULL, present);
+						throwNull(mv, wf);
+						mv.visitLabel(present);
+					}
+					loadMarshaller(mv, refIndices.get(wf));
+					mv.visitTypeInsn(CHECKCAST, PACKED);
+					mv.visitVarInsn(ALOAD, 5);
+					mv.visitMethodInsn(INVOKEVIRTUAL, PACKED, "pack", "(Ljava/lang/Object;)J", false);
+				}
+				mv.visitVarInsn(LSTORE, packedLocals.get(wf));
+			}
+			for (int i = 0; i < headerBytes; i++) {
+				mv.visitInsn(ICONST_0);
+				mv.visitVarInsn(ISTORE, 4);
+				for (WireField<?> wf : fields) {
+					Integer bit = bitIndices.get(wf);
+					if (bit == null || bit / 8 != i) continue;
+					mv.visitVarInsn(ILOAD, 4);
+					if (wf.getType() == Boolean.TYPE) {
+						getField(mv, 3, wf);
+						pushInt(mv, bit % 8);
+						mv.visitInsn(ISHL);
+					} else if (wf.getType().isPrimitive()) {
+						pushInt(mv, 1 << (bit % 8));
+					} else {
+						Label absent = new Label();
+						Label done = new Label();
+						getField(mv, 3, wf);
+						mv.visitJumpInsn(IFNULL, absent);
+						pushInt(mv, 1 << (bit % 8));
+						mv.visitJumpInsn(GOTO, done);
+						mv.visitLabel(absent);
+						mv.visitInsn(ICONST_0);
+						mv.visitLabel(done);
+					}
+					mv.visitInsn(IOR);
+					mv.visitVarInsn(ISTORE, 4);
+				}
+				for (WireField<?> wf : fields) {
+					Integer start = packedIndices.get(wf);
+					if (start == null || start >= (i + 1) * 8 || start + wf.getPackedBits() <= i * 8) continue;
+					mv.visitVarInsn(ILOAD, 4);
+					mv.visitVarInsn(LLOAD, packedLocals.get(wf));
+					if (start <= i * 8) {
+						pushInt(mv, (i * 8) - start);
+						mv.visitInsn(LUSHR);
+					} else {
+						pushInt(mv, start - (i * 8));
+						mv.visitInsn(LSHL);
+					}
+					mv.visitInsn(L2I);
+					mv.visitInsn(IOR);
+					mv.visitVarInsn(ISTORE, 4);
+				}
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitVarInsn(ILOAD, 4);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, "writeByte", "(I)" + BYTEBUF_DESC, false);
+				mv.visitInsn(POP);
+			}
+			for (WireField<?> wf : fields) {
+				if (wf.getType() == Boolean.TYPE || wf.isPacked()) continue;
+				Type fieldType = Type.getType(wf.getType());
+				Integer ref = refIndices.get(wf);
+				if (ref == null) {
+					PrimitiveOp op = primitiveOps.get(wf.getMarshaller());
+					mv.visitVarInsn(ALOAD, 2);
+					getField(mv, 3, wf);
+					convert(mv, fieldType, op.writeType);
+					if (op.isStatic) {
+						mv.visitInsn(ICONST_5);
+						mv.visitMethodInsn(INVOKESTATIC, op.owner, op.writeName, "(" + BYTEBUF_DESC + op.writeType.getDescriptor() + "I)V", false);
+					} else {
+						mv.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, op.writeName, "(" + op.writeType.getDescriptor() + ")" + BYTEBUF_DESC, false);
+						mv.visitInsn(POP);
+					}
+				} else if (wf.getType().isPrimitive() && unboxedType(wf) != null) {
+					loadMarshaller(mv, ref);
+					mv.visitTypeInsn(CHECKCAST, primitiveMarshallerName(wf));
+					mv.visitVarInsn(ALOAD, 2);
+					getField(mv, 3, wf);
+					writePrimitive(mv, wf);
+				} else if (wf.getType().isPrimitive()) {
+					loadMarshaller(mv, ref);
+					mv.visitVarInsn(ALOAD, 2);
+					getField(mv, 3, wf);
+					box(mv, fieldType);
+					mv.visitMethodInsn(INVOKEINTERFACE, MARSHALLER, "marshal", "(" + BYTEBUF_DESC + "Ljava/lang/Object;)V", true);
+				} else {
+					Label present = new Label();
+					Label skip = new Label();
+					getField(mv, 3, wf);
+					mv.visitVarInsn(ASTORE, 5);
+					mv.visitVarInsn(ALOAD, 5);
+					mv.visitJumpInsn(IFNONNULL, present);
+					if (wf.isOptional()) {
+						mv.visitJumpInsn(GOTO, skip);
+					} else {
+						throwNull(mv, wf);
+					}
+					mv.visitLabel(present);
+					loadMarshaller(mv, ref);
+					if (unboxedType(wf) != null) {
+						mv.visitTypeInsn(CHECKCAST, primitiveMarshallerName(wf));
+						mv.visitVarInsn(ALOAD, 2);
+						mv.visitVarInsn(ALOAD, 5);
+						unbox(mv, unboxedType(wf));
+						writePrimitive(mv, wf);
+					} else {
+						mv.visitVarInsn(ALOAD, 2);
+						mv.visitVarInsn(ALOAD, 5);
+						mv.visitMethodInsn(INVOKEINTERFACE, MARSHALLER, "marshal", "(" + BYTEBUF_DESC + "Ljava/lang/Object;)V", true);
+					}
+					mv.visitLabel(skip);
+				}
+			}
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		
+		// locals: 0 this, 1 message, 2 in, 3 typed message, 4+ header bytes
+		private void generateDecode(ClassWriter cw) {
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "decode", "(L" + MESSAGE + ";" + BYTEBUF_DESC + ")V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitTypeInsn(CHECKCAST, owner);
+			mv.visitVarInsn(ASTORE, 3);
+			for (int i = 0; i < headerBytes; i++) {
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, "readUnsignedByte", "()S", false);
+				mv.visitVarInsn(ISTORE, 4 + i);
+			}
+			for (WireField<?> wf : fields) {
+				if (wf.getType() != Boolean.TYPE) continue;
+				int bit = bitIndices.get(wf);
+				mv.visitVarInsn(ALOAD, 3);
+				mv.visitVarInsn(ILOAD, 4 + (bit / 8));
+				pushInt(mv, bit % 8);
+				mv.visitInsn(ISHR);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IAND);
+				putField(mv, wf);
+			}
+			for (WireField<?> wf : fields) {
+				if (wf.getType() == Boolean.TYPE) continue;
+				Type fieldType = Type.getType(wf.getType());
+				Label skip = new Label();
+				Integer bit = bitIndices.get(wf);
+				if (bit != null) {
+					mv.visitVarInsn(ILOAD, 4 + (bit / 8));
+					pushInt(mv, 1 << (bit % 8));
+					mv.visitInsn(IAND);
+					mv.visitJumpInsn(IFEQ, skip);
+				}
+				mv.visitVarInsn(ALOAD, 3);
+				Integer ref = refIndices.get(wf);
+				if (wf.isPacked()) {
+					String packed = wf.getType().isPrimitive() ? packedOwner(wf) : PACKED;
+					loadMarshaller(mv, ref);
+					mv.visitTypeInsn(CHECKCAST, packed);
+					readPacked(mv, wf);
+					if (!wf.getType().isPrimitive()) {
+						mv.visitMethodInsn(INVOKEVIRTUAL, PACKED, "unpack", "(J)Ljava/lang/Object;", false);
+						mv.visitTypeInsn(CHECKCAST, fieldType.getInternalName());
+					} else if (DOUBLE_PACKED.equals(packed)) {
+						mv.visitMethodInsn(INVOKEVIRTUAL, packed, "unpackDouble", "(J)D", false);
+						convert(mv, Type.DOUBLE_TYPE, fieldType);
+					} else {
+						mv.visitMethodInsn(INVOKEVIRTUAL, packed, "unpackLong", "(J)J", false);
+						convert(mv, Type.LONG_TYPE, fieldType);
+					}
+				} else if (ref == null) {
+					PrimitiveOp op = primitiveOps.get(wf.getMarshaller());
+					mv.visitVarInsn(ALOAD, 2);
+					if (op.isStatic) {
+						mv.visitInsn(ICONST_5);
+						mv.visitMethodInsn(INVOKESTATIC, op.owner, op.readName, "(" + BYTEBUF_DESC + "I)" + op.readType.getDescriptor(), false);
+					} else {
+						mv.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, op.readName, "()" + op.readType.getDescriptor(), false);
+					}
+					convert(mv, op.readType, fieldType);
+				} else if (unboxedType(wf) != null) {
+					Type unboxed = unboxedType(wf);
+					loadMarshaller(mv, ref);
+					mv.visitTypeInsn(CHECKCAST, primitiveMarshallerName(wf));
+					mv.visitVarInsn(ALOAD, 2);
+					readPrimitive(mv, wf);
+					convert(mv, Type.getType(WireField.getPrimitiveType(wf.getMarshaller())), unboxed);
+					if (!wf.getType().isPrimitive()) {
+						box(mv, unboxed);
+					}
+				} else {
+					loadMarshaller(mv, ref);
+					mv.visitVarInsn(ALOAD, 2);
+					mv.visitMethodInsn(INVOKEINTERFACE, MARSHALLER, "unmarshal", "(" + BYTEBUF_DESC + ")Ljava/lang/Object;", true);
+					if (wf.getType().isPrimitive()) {
+						unbox(mv, fieldType);
+					} else {
+						mv.visitTypeInsn(CHECKCAST, fieldType.getInternalName());
+					}
+				}
+				putField(mv, wf);
+				mv.visitLabel(skip);
+			}
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		
+		/**
+		 * Pushes a packed field's value as a long, put back together from the
+		 * header bytes it spans.
+		 */
+		private void readPacked(MethodVisitor mv, WireField<?> wf) {
+			int start = packedIndices.get(wf);
+			int bits = wf.getPackedBits();
+			if (bits == 0) {
+				mv.visitInsn(LCONST_0);
+				return;
+			}
+			for (int i = start / 8; i * 8 < start + bits; i++) {
+				mv.visitVarInsn(ILOAD, 4 + i);
+				mv.visitInsn(I2L);
+				if (i * 8 >= start) {
+					pushInt(mv, (i * 8) - start);
+					mv.visitInsn(LSHL);
+				} else {
+					pushInt(mv, start - (i * 8));
+					mv.visitInsn(LUSHR);
+				}
+				if (i != start / 8) {
+					mv.visitInsn(LOR);
+				}
+			}
+			mv.visitLdcInsn((1L << bits) - 1);
+			mv.visitInsn(LAND);
+		}
+		
+		private void throwNull(MethodVisitor mv, WireField<?> wf) {
+			Field f = wf.getField();
+			mv.visitTypeInsn(NEW, EXCEPTION);
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn("Wire fields cannot be null (in " + f.getType() + " " + f.getDeclaringClass().getName() + "." + f.getName() + ")");
+			mv.visitMethodInsn(INVOKESPECIAL, EXCEPTION, "<init>", "(Ljava/lang/String;)V", false);
+			mv.visitInsn(ATHROW);
+		}
+		
+		private void getField(MethodVisitor mv, int local, WireField<?> wf) {
+			Field f = wf.getField();
+			mv.visitVarInsn(ALOAD, local);
+			mv.visitFieldInsn(GETFIELD, Type.getInternalName(f.getDeclaringClass()), f.getName(), Type.getDescriptor(f.getType()));
+		}
+		
+		private void putField(MethodVisitor mv, WireField<?> wf) {
+			Field f = wf.getField();
+			mv.visitFieldInsn(PUTFIELD, Type.getInternalName(f.getDeclaringClass()), f.getName(), Type.getDescriptor(f.getType()));
+		}
+		
+		private void loadMarshaller(MethodVisitor mv, int index) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, name, "m" + index, MARSHALLER_DESC);
+		}
+	}
+	
+	
+	private static void pushInt(MethodVisitor mv, int i) {
+		if (i >= -1 && i <= 5) {
+			mv.visitInsn(ICONST_0 + i);
+		} else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, i);
+		} else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, i);
+		} else {
+			mv.visitLdcInsn(i);
+		}
+	}
+	
+	/**
+	 * @return the primitive type of the given number field, if its marshaller
+	 * 		can be called without boxing, otherwise null
+	 */
+	private static Type unboxedType(WireField<?> wf) {
+		Class<?> unwrapped = Primitives.unwrap(wf.getType());
+		if (!unwrapped.isPrimitive() || unwrapped == Boolean.TYPE || unwrapped == Character.TYPE) return null;
+		if (WireField.getPrimitiveType(wf.getMarshaller()) == null) return null;
+		return Type.getType(unwrapped);
+	}
+	
+	private static String primitiveMarshallerName(WireField<?> wf) {
+		Class<?> wire = WireField.getPrimitiveType(wf.getMarshaller());
+		return Type.getInternalName(wire == int.class ? IntMarshaller.class
+				: wire == long.class ? LongMarshaller.class
+				: wire == float.class ? FloatMarshaller.class
+				: DoubleMarshaller.class);
+	}
+	
+	/**
+	 * Expects the primitive marshaller, the buffer, and the unboxed field
+	 * value on the stack.
+	 */
+	private static void writePrimitive(MethodVisitor mv, WireField<?> wf) {
+		Class<?> wire = WireField.getPrimitiveType(wf.getMarshaller());
+		Type wireType = Type.getType(wire);
+		convert(mv, unboxedType(wf), wireType);
+		String name = "write" + Character.toUpperCase(wire.getName().charAt(0)) + wire.getName().substring(1);
+		mv.visitMethodInsn(INVOKEINTERFACE, primitiveMarshallerName(wf), name, "(" + BYTEBUF_DESC + wireType.getDescriptor() + ")V", true);
+	}
+	
+	/**
+	 * Expects the primitive marshaller and the buffer on the stack, and leaves
+	 * the value as the marshaller's primitive type.
+	 */
+	private static void readPrimitive(MethodVisitor mv, WireField<?> wf) {
+		Class<?> wire = WireField.getPrimitiveType(wf.getMarshaller());
+		String name = "read" + Character.toUpperCase(wire.getName().charAt(0)) + wire.getName().substring(1);
+		mv.visitMethodInsn(INVOKEINTERFACE, primitiveMarshallerName(wf), name, "(" + BYTEBUF_DESC + ")" + Type.getDescriptor(wire), true);
+	}
+	
+	/**
+	 * Emits the same conversion a cast between the two primitive types would.
+	 */
+	private static void convert(MethodVisitor mv, Type from, Type to) {
+		int f = from.getSort();
+		int t = to.getSort();
+		if (f == t) return;
+		int fromCategory = category(f);
+		int toCategory = category(t);
+		if (fromCategory != toCategory) {
+			switch (fromCategory) {
+				case Type.INT:
+					mv.visitInsn(toCategory == Type.LONG ? I2L : toCategory == Type.FLOAT ? I2F : I2D);
+					break;
+				case Type.LONG:
+					mv.visitInsn(toCategory == Type.INT ? L2I : toCategory == Type.FLOAT ? L2F : L2D);
+					break;
+				case Type.FLOAT:
+					mv.visitInsn(toCategory == Type.INT ? F2I : toCategory == Type.LONG ? F2L : F2D);
+					break;
+				case Type.DOUBLE:
+					mv.visitInsn(toCategory == Type.INT ? D2I : toCategory == Type.LONG ? D2L : D2F);
+					break;
+			}
+		}
+		switch (t) {
+			case Type.BYTE:
+				mv.visitInsn(I2B);
+				break;
+			case Type.SHORT:
+				mv.visitInsn(I2S);
+				break;
+			case Type.CHAR:
+				mv.visitInsn(I2C);
+				break;
+		}
+	}
+	
+	private static int category(int sort) {
+		switch (sort) {
+			case Type.LONG:
+			case Type.FLOAT:
+			case Type.DOUBLE:
+				return sort;
+			default:
+				return Type.INT;
+		}
+	}
+	
+	private static void box(MethodVisitor mv, Type type) {
+		Type boxed = boxedType(type);
+		mv.visitMethodInsn(INVOKESTATIC, boxed.getInternalName(), "valueOf", "(" + type.getDescriptor() + ")" + boxed.getDescriptor(), false);
+	}
+	
+	private static void unbox(MethodVisitor mv, Type type) {
+		if (type.getSort() == Type.CHAR) {
+			mv.visitTypeInsn(CHECKCAST, "java/lang/Character");
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C", false);
+		} else {
+			mv.visitTypeInsn(CHECKCAST, "java/lang/Number");
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", type.getClassName() + "Value", "()" + type.getDescriptor(), false);
+		}
+	}
+	
+	private static Type boxedType(Type type) {
+		switch (type.getSort()) {
+			case Type.BYTE: return Type.getType(Byte.class);
+			case Type.SHORT: return Type.getType(Short.class);
+			case Type.CHAR: return Type.getType(Character.class);
+			case Type.INT: return Type.getType(Integer.class);
+			case Type.LONG: return Type.getType(Long.class);
+			case Type.FLOAT: return Type.getType(Float.class);
+			case Type.DOUBLE: return Type.getType(Double.class);
+			default: throw new IllegalArgumentException(type.toString());
+		}
+	}
+	
+	private CodecGenerator() {}
+}
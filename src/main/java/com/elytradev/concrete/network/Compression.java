@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Deflate and inflate between ByteBufs, reusing one Deflater and Inflater per
+ * thread.
+ */
+final class Compression {
+	/**
+	 * The most a compressed payload may claim to inflate to, so that a
+	 * malicious peer can't make us allocate arbitrary amounts of memory.
+	 */
+	public static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+	
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+	private static final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[8192]);
+	
+	/**
+	 * Deflate all the readable bytes of {@code in} onto the end of
+	 * {@code out}, without changing the indices of {@code in}.
+	 */
+	public static void deflate(ByteBuf in, ByteBuf out) {
+		Deflater deflater = deflaters.get();
+		byte[] chunk = chunks.get();
+		try {
+			if (in.hasArray()) {
+				deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+			} else {
+				byte[] copy = new byte[in.readableBytes()];
+				in.getBytes(in.readerIndex(), copy);
+				deflater.setInput(copy);
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				int len = deflater.deflate(chunk);
+				out.writeBytes(chunk, 0, len);
+			}
+		} finally {
+			deflater.reset();
+		}
+	}
+	
+	/**
+	 * Inflate all the readable bytes of {@code in}, which must come out to
+	 * exactly {@code size} bytes.
+	 * 
+	 * @return a new buffer that must be released by the caller
+	 */
+	public static ByteBuf inflate(ByteBuf in, int size) {
+		if (size < 0 || size > MAX_INFLATED_SIZE) {
+			throw new BadMessageException("Compressed payload claims to inflate to " + size + " bytes");
+		}
+		Inflater inflater = inflaters.get();
+		ByteBuf out = PooledByteBufAllocator.DEFAULT.heapBuffer(size, size);
+		try {
+			if (in.hasArray()) {
+				inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+			} else {
+				byte[] copy = new byte[in.readableBytes()];
+				in.getBytes(in.readerIndex(), copy);
+				inflater.setInput(copy);
+			}
+			in.skipBytes(in.readableBytes());
+			int len = inflater.inflate(out.array(), out.arrayOffset(), size);
+			if (len != size || !inflater.finished()) {
+				throw new BadMessageException("Compressed payload did not inflate to its stated size of " + size + " bytes");
+			}
+			out.writerIndex(size);
+			return out;
+		} catch (DataFormatException e) {
+			out.release();
+			throw new BadMessageException("Malformed compressed payload", e);
+		} catch (RuntimeException e) {
+			out.release();
+			throw e;
+		} finally {
+			inflater.reset();
+		}
+	}
+	
+	private Compression() {}
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+/**
+ * One direction of a per-connection dictionary, used by
+ * {@link com.elytradev.concrete.network.annotation.field.Interned Interned}
+ * fields to avoid resending strings and NBT tags.
+ * <p>
+ * The first time the sender writes a value, it gives it an id and sends it in
+ * full, and after that just sends the id. When the dictionary is full, the
+ * least recently used value is dropped and its id goes to the new one. The
+ * receiver only has to remember the last value sent in full for each id, so
+ * the two stay in step as long as Messages arrive in the order they were
+ * encoded.
+ * <p>
+ * Strings are written as a varint tag: 0 for a string that follows and isn't
+ * remembered, {@code 1 + id * 2} for a string that follows and is remembered
+ * as id, and {@code 2 + id * 2} for a string that was remembered before. NBT
+ * tags are the same, shifted up by one to make room for 0 meaning no tag. The
+ * sender only remembers a hash of each tag's bytes.
+ */
+final class ConnectionDictionary {
+	public static final int STRING_CAPACITY = 1024;
+	/**
+	 * Longer strings are always sent in full, so they don't fill the
+	 * dictionary.
+	 */
+	public static final int MAX_STRING_LENGTH = 256;
+	
+	public static final int TAG_CAPACITY = 256;
+	/**
+	 * Larger tags are always sent in full, which bounds how much the
+	 * receiver has to remember.
+	 */
+	public static final int MAX_TAG_SIZE = 8192;
+	
+	/**
+	 * The connection the Message being encoded or decoded on this thread is
+	 * for, as marshallers aren't told.
+	 */
+	private static final ThreadLocal<ConnectionState> current = new ThreadLocal<>();
+	
+	private final int capacity;
+	private final Map<Object, Integer> ids = new LinkedHashMap<>(16, 0.75f, true);
+	private Object[] values = new Object[16];
+	
+	public ConnectionDictionary(int capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Makes marshallers on this thread use the dictionaries of the given
+	 * connection, or none for null.
+	 * 
+	 * @return the connection that was in use before, to pass to {@link #exit}
+	 */
+	@Nullable
+	public static ConnectionState enter(@Nullable ConnectionState state) {
+		ConnectionState prev = current.get();
+		current.set(state);
+		return prev;
+	}
+	
+	public static void exit(@Nullable ConnectionState prev) {
+		if (prev == null) {
+			current.remove();
+		} else {
+			current.set(prev);
+		}
+	}
+	
+	public static void writeString(ByteBuf out, String s) {
+		ConnectionState state = current.get();
+		if (state == null || s.length() > MAX_STRING_LENGTH) {
+			ByteBufUtils.writeVarInt(out, 0, 5);
+			ByteBufUtils.writeUTF8String(out, s);
+			return;
+		}
+		int id = state.sentStrings.assign(s);
+		if (id >= 0) {
+			ByteBufUtils.writeVarInt(out, 2 + (id * 2), 5);
+		} else {
+			ByteBufUtils.writeVarInt(out, 1 + (~id * 2), 5);
+			ByteBufUtils.writeUTF8String(out, s);
+		}
+	}
+	
+	public static String readString(ByteBuf in) {
+		int tag = ByteBufUtils.readVarInt(in, 5);
+		if (tag == 0) {
+			return ByteBufUtils.readUTF8String(in);
+		}
+		ConnectionDictionary dict = received(true);
+		int id = (tag - 1) >>> 1;
+		if ((tag & 1) != 0) {
+			String s = ByteBufUtils.readUTF8String(in);
+			dict.define(id, s);
+			return s;
+		}
+		return (String) dict.get(id);
+	}
+	
+	public static void writeTag(ByteBuf out, @Nullable NBTTagCompound tag) {
+		if (tag == null) {
+			ByteBufUtils.writeVarInt(out, 0, 5);
+			return;
+		}
+		ConnectionState state = current.get();
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		try {
+			ByteBufUtils.writeTag(scratch, tag);
+			if (state == null || scratch.readableBytes() > MAX_TAG_SIZE) {
+				ByteBufUtils.writeVarInt(out, 1, 5);
+				out.writeBytes(scratch);
+				return;
+			}
+			HashCode hash = Hashing.murmur3_128().hashBytes(scratch.array(), scratch.arrayOffset() + scratch.readerIndex(), scratch.readableBytes());
+			int id = state.sentTags.assign(hash);
+			if (id >= 0) {
+				ByteBufUtils.writeVarInt(out, 3 + (id * 2), 5);
+			} else {
+				ByteBufUtils.writeVarInt(out, 2 + (~id * 2), 5);
+				out.writeBytes(scratch);
+			}
+		} finally {
+			scratch.release();
+		}
+	}
+	
+	/**
+	 * @return the tag, which is a new copy even if it was sent before
+	 */
+	@Nullable
+	public static NBTTagCompound readTag(ByteBuf in) {
+		int tag = ByteBufUtils.readVarInt(in, 5);
+		if (tag == 0) {
+			return null;
+		} else if (tag == 1) {
+			return ByteBufUtils.readTag(in);
+		}
+		ConnectionDictionary dict = received(false);
+		int id = (tag - 2) >>> 1;
+		if ((tag & 1) == 0) {
+			int start = in.readerIndex();
+			NBTTagCompound nbt = ByteBufUtils.readTag(in);
+			if (in.readerIndex() - start > MAX_TAG_SIZE) {
+				throw new BadMessageException("Interned NBT tag is larger than " + MAX_TAG_SIZE + " bytes");
+			}
+			dict.define(id, nbt);
+			return nbt == null ? null : nbt.copy();
+		}
+		NBTTagCompound nbt = (NBTTagCompound) dict.get(id);
+		return nbt == null ? null : nbt.copy();
+	}
+	
+	private static ConnectionDictionary received(boolean strings) {
+		ConnectionState state = current.get();
+		if (state == null) {
+			throw new BadMessageException("Received an interned value outside of a connection");
+		}
+		return strings ? state.receivedStrings : state.receivedTags;
+	}
+	
+	/**
+	 * For the sender.
+	 * 
+	 * @return the id the given key already had, or the bitwise complement of
+	 * 		the id it has now been given, in which case the value has to be
+	 * 		sent in full
+	 */
+	private synchronized int assign(Object key) {
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		int newId;
+		if (ids.size() < capacity) {
+			newId = ids.size();
+		} else {
+			Iterator<Integer> iter = ids.values().iterator();
+			newId = iter.next();
+			iter.remove();
+		}
+		ids.put(key, newId);
+		return ~newId;
+	}
+	
+	/**
+	 * For the receiver; remembers the value just sent in full for the given
+	 * id.
+	 */
+	private void define(int id, Object value) {
+		if (id >= capacity) {
+			throw new BadMessageException("Interned id " + id + " is out of range");
+		}
+		if (id >= values.length) {
+			values = Arrays.copyOf(values, Math.min(capacity, Math.max(values.length * 2, id + 1)));
+		}
+		values[id] = value;
+	}
+	
+	private Object get(int id) {
+		if (id >= values.length || values[id] == null) {
+			throw new BadMessageException("Received unknown interned id " + id);
+		}
+		return values[id];
+	}
+	
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.elytradev.concrete.network.DeltaCodec.ReceivedHistory;
+import com.elytradev.concrete.network.DeltaCodec.SentHistory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.minecraft.network.NetworkManager;
+
+/**
+ * Per-connection state kept by a {@link NetworkContext}, attached to the
+ * connection's netty channel so it goes away with it.
+ */
+final class ConnectionState {
+	private static final AtomicInteger nextId = new AtomicInteger();
+	
+	/**
+	 * Null for the stand-in connections of a {@link TrafficReplay}.
+	 */
+	public final NetworkManager manager;
+	/**
+	 * Tells connections apart in traffic captures.
+	 */
+	public final int id = nextId.getAndIncrement();
+	
+	/**
+	 * Held while encoding a Message whose encoding depends on this
+	 * connection, until it has been queued or sent, so that nothing else can
+	 * be encoded for the connection in between.
+	 */
+	public final Object sendLock = new Object();
+	
+	/**
+	 * Payloads waiting for the end of the tick, by priority. High and normal
+	 * priority payloads are only held when batching, and all of them are
+	 * sent that tick; low priority ones may wait for several ticks. Mostly
+	 * filled on the server thread, but always synchronized on
+	 * {@link #sendLock}.
+	 */
+	public final List<Payload> urgent = Lists.newArrayList();
+	public final List<Payload> batch = Lists.newArrayList();
+	public final Deque<Payload> deferred = new ArrayDeque<>();
+	public boolean awaitingFlush = false;
+	
+	/**
+	 * What this side last sent of each {@link com.elytradev.concrete.network.annotation.type.Delta Delta}
+	 * type. Messages can be sent from any thread, so each history is
+	 * synchronized on.
+	 */
+	public final Map<MessageType, SentHistory> sentDeltas = Maps.newConcurrentMap();
+	/**
+	 * What this side last received of each Delta type. Only touched on the
+	 * netty thread.
+	 */
+	public final Map<MessageType, ReceivedHistory> receivedDeltas = Maps.newHashMap();
+	
+	/**
+	 * Streams being sent, oldest first. Only touched on the thread that
+	 * ticks this side.
+	 */
+	public final Deque<OutgoingStream> outgoingStreams = new ArrayDeque<>();
+	public boolean streaming = false;
+	public int nextStreamId = 0;
+	/**
+	 * Streams being received, by id. Only touched on the netty thread.
+	 */
+	public final Map<Integer, IncomingStream> incomingStreams = Maps.newHashMap();
+	
+	/**
+	 * Where {@link com.elytradev.concrete.network.annotation.type.Offloaded Offloaded}
+	 * Messages from this connection are handled. Created when first needed.
+	 */
+	private SerialLane lane;
+	
+	/**
+	 * Inbound rate limits, by Message type. Only touched on the netty thread.
+	 */
+	public final Map<MessageType, RateLimiter> limiters = Maps.newHashMap();
+	/**
+	 * Limits frames other than Messages from this connection. Created when
+	 * first needed, and only touched on the netty thread.
+	 */
+	public TokenBucket controlFrames;
+	/**
+	 * Set once the player has been scheduled to be disconnected, after which
+	 * nothing more is read from this connection.
+	 */
+	public volatile boolean kicking = false;
+	
+	/**
+	 * Whether this side has sent its schema fingerprint on this connection,
+	 * and whether the other side's has been received and matches. Until it
+	 * has, Messages are sent with the self-describing encoding.
+	 */
+	public final AtomicBoolean schemaSent = new AtomicBoolean();
+	public volatile boolean schemaConfirmed = false;
+	
+	/**
+	 * Interned strings and NBT tags sent on this connection, and received
+	 * from it. Sent dictionaries are synchronized on; received ones are only
+	 * touched on the netty thread.
+	 */
+	public final ConnectionDictionary sentStrings = new ConnectionDictionary(ConnectionDictionary.STRING_CAPACITY);
+	public final ConnectionDictionary receivedStrings = new ConnectionDictionary(ConnectionDictionary.STRING_CAPACITY);
+	public final ConnectionDictionary sentTags = new ConnectionDictionary(ConnectionDictionary.TAG_CAPACITY);
+	public final ConnectionDictionary receivedTags = new ConnectionDictionary(ConnectionDictionary.TAG_CAPACITY);
+	
+	public ConnectionState(NetworkManager manager) {
+		this.manager = manager;
+		// both ends of a local connection share one NetworkContext
+		this.schemaConfirmed = manager != null && manager.isLocalChannel();
+	}
+	
+	public synchronized SerialLane getLane(Executor pool, int capacity) {
+		if (lane == null) {
+			lane = new SerialLane(pool, capacity);
+		}
+		return lane;
+	}
+}
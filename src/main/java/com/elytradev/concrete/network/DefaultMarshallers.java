@@ -31,28 +31,42 @@ package com.elytradev.concrete.network;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
 
 import com.elytradev.concrete.common.ConcreteLog;
 import com.elytradev.concrete.common.MoreByteBufUtils;
 import com.elytradev.concrete.network.exception.BadMessageException;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.primitives.Ints;
+import com.google.common.collect.Sets;
 
 import io.netty.buffer.ByteBuf;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.math.BlockPos;
+import net.minecraftforge.fluids.Fluid;
+import net.minecraftforge.fluids.FluidRegistry;
+import net.minecraftforge.fluids.FluidStack;
 import net.minecraftforge.fml.common.network.ByteBufUtils;
 
 /**
  * A set of default marshallers for common data types.
  * <p>
- * Any marshaller can be used for lists by putting "-list" after its name.
+ * Any marshaller can be used for lists by putting "-list" after its name, and
+ * for sets by putting "-set" after its name. Maps are named by their key and
+ * value marshallers, followed by "-map", like "blockpos:i32-map".
+ * <p>
+ * Number marshallers can also be used for primitive arrays by putting "-array"
+ * after their name. i8, i16, i32, i64, f32, and f64 arrays are copied in bulk;
+ * other integer marshallers, like "varint-array" or "u32-array", give int or
+ * long arrays written an element at a time, without boxing.
  */
 public final class DefaultMarshallers {
 	
@@ -61,13 +75,13 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: u8, uint8, ubyte
 	 */
-	public static final Marshaller<? extends Number> UINT8 = weld(Number::intValue, ByteBuf::writeByte, ByteBuf::readUnsignedByte);
+	public static final Marshaller<? extends Number> UINT8 = ints(ByteBuf::writeByte, ByteBuf::readUnsignedByte);
 	/**
 	 * Signed 8-bit (1 byte) integer.
 	 * <p>
 	 * Aliases: i8, int8, byte
 	 */
-	public static final Marshaller<? extends Number> INT8 = weld(Number::intValue, ByteBuf::writeByte, ByteBuf::readByte);
+	public static final Marshaller<? extends Number> INT8 = ints(ByteBuf::writeByte, ByteBuf::readByte);
 	
 	
 	/**
@@ -75,7 +89,7 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: u16, uint16, ushort
 	 */
-	public static final Marshaller<? extends Number> UINT16 = weld(Number::intValue, ByteBuf::writeShort, ByteBuf::readUnsignedShort);
+	public static final Marshaller<? extends Number> UINT16 = ints(ByteBuf::writeShort, ByteBuf::readUnsignedShort);
 	/**
 	 * 16-bit (2 byte) character.
 	 * <p>
@@ -87,7 +101,7 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: i16, int16, short
 	 */
-	public static final Marshaller<? extends Number> INT16 = weld(Number::intValue, ByteBuf::writeShort, ByteBuf::readShort);
+	public static final Marshaller<? extends Number> INT16 = ints(ByteBuf::writeShort, ByteBuf::readShort);
 	
 	
 	/**
@@ -95,13 +109,13 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: u24, uint24, umedium
 	 */
-	public static final Marshaller<? extends Number> UINT24 = weld(Number::intValue, ByteBuf::writeMedium, ByteBuf::readUnsignedMedium);
+	public static final Marshaller<? extends Number> UINT24 = ints(ByteBuf::writeMedium, ByteBuf::readUnsignedMedium);
 	/**
 	 * Signed 24-bit (3 byte) integer.
 	 * <p>
 	 * Aliases: i24, int24, medium
 	 */
-	public static final Marshaller<? extends Number> INT24 = weld(Number::intValue, ByteBuf::writeMedium, ByteBuf::readMedium);
+	public static final Marshaller<? extends Number> INT24 = ints(ByteBuf::writeMedium, ByteBuf::readMedium);
 	
 	
 	/**
@@ -109,13 +123,13 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: u32, uint32, uint, uinteger
 	 */
-	public static final Marshaller<? extends Number> UINT32 = weld(Number::intValue, ByteBuf::writeInt, ByteBuf::readUnsignedInt);
+	public static final Marshaller<? extends Number> UINT32 = longs((out, l) -> out.writeInt((int) l), ByteBuf::readUnsignedInt);
 	/**
 	 * Signed 32-bit (4 byte) integer.
 	 * <p>
 	 * Aliases: i32, int32, int, integer
 	 */
-	public static final Marshaller<? extends Number> INT32 = weld(Number::intValue, ByteBuf::writeInt, ByteBuf::readInt);
+	public static final Marshaller<? extends Number> INT32 = ints(ByteBuf::writeInt, ByteBuf::readInt);
 	
 	
 	/**
@@ -123,7 +137,7 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: i64, int64, long
 	 */
-	public static final Marshaller<? extends Number> INT64 = weld(Number::longValue, ByteBuf::writeLong, ByteBuf::readLong);
+	public static final Marshaller<? extends Number> INT64 = longs(ByteBuf::writeLong, ByteBuf::readLong);
 	
 	
 	/**
@@ -131,7 +145,7 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: f32, float
 	 */
-	public static final Marshaller<? extends Number> FLOAT = weld(Number::floatValue, ByteBuf::writeFloat, ByteBuf::readFloat);
+	public static final Marshaller<? extends Number> FLOAT = floats(ByteBuf::writeFloat, ByteBuf::readFloat);
 	
 	
 	/**
@@ -139,7 +153,7 @@ public final class DefaultMarshallers {
 	 * <p>
 	 * Aliases: f64, double
 	 */
-	public static final Marshaller<? extends Number> DOUBLE = weld(Number::doubleValue, ByteBuf::writeDouble, ByteBuf::readDouble);
+	public static final Marshaller<? extends Number> DOUBLE = doubles(ByteBuf::writeDouble, ByteBuf::readDouble);
 	
 	
 	/**
@@ -175,11 +189,84 @@ public final class DefaultMarshallers {
 	 */
 	public static final Marshaller<String> STRING = weld(ByteBufUtils::writeUTF8String, ByteBufUtils::readUTF8String);
 	
+	/**
+	 * A ResourceLocation, as a UTF-8 string.
+	 */
+	public static final Marshaller<ResourceLocation> RESOURCELOCATION = weld((out, rl) -> ByteBufUtils.writeUTF8String(out, rl.toString()), in -> new ResourceLocation(ByteBufUtils.readUTF8String(in)));
+	
+	/**
+	 * A string that is sent in full the first time, and as an id from a
+	 * per-connection dictionary after that.
+	 * 
+	 * @see com.elytradev.concrete.network.annotation.field.Interned
+	 */
+	public static final Marshaller<String> INTERNED_STRING = new DictionaryMarshaller<String>(true) {
+		@Override
+		public void marshal(ByteBuf out, String t) {
+			ConnectionDictionary.writeString(out, t);
+		}
+		@Override
+		public String unmarshal(ByteBuf in) {
+			return ConnectionDictionary.readString(in);
+		}
+	};
+	
+	/**
+	 * A ResourceLocation, sent like {@link #INTERNED_STRING}.
+	 */
+	public static final Marshaller<ResourceLocation> INTERNED_RESOURCELOCATION = new DictionaryMarshaller<ResourceLocation>(true) {
+		@Override
+		public void marshal(ByteBuf out, ResourceLocation t) {
+			ConnectionDictionary.writeString(out, t.toString());
+		}
+		@Override
+		public ResourceLocation unmarshal(ByteBuf in) {
+			return new ResourceLocation(ConnectionDictionary.readString(in));
+		}
+	};
+	
 	/**
 	 * Packed ItemStack.
 	 */
 	public static final Marshaller<ItemStack> ITEMSTACK = weld(ByteBufUtils::writeItemStack, ByteBufUtils::readItemStack);
 	
+	/**
+	 * ItemStack as varints of its numeric item id, count, and damage,
+	 * followed by its NBT tag only if it has one. Empty stacks are a single
+	 * byte.
+	 * <p>
+	 * Aliases: compact-item, compact-stack
+	 */
+	public static final Marshaller<ItemStack> COMPACT_ITEMSTACK = new CompactItemStackMarshaller(false);
+	
+	/**
+	 * Like {@link #COMPACT_ITEMSTACK}, but NBT tags that were already sent on
+	 * the connection are only sent as an id.
+	 * <p>
+	 * Aliases: interned-item, interned-stack
+	 * 
+	 * @see com.elytradev.concrete.network.annotation.field.Interned
+	 */
+	public static final Marshaller<ItemStack> INTERNED_ITEMSTACK = new CompactItemStackMarshaller(true);
+	
+	/**
+	 * FluidStack as the fluid name, a varint amount, and its NBT tag only if
+	 * it has one.
+	 * <p>
+	 * Aliases: fluid, fluidstack
+	 */
+	public static final Marshaller<FluidStack> FLUIDSTACK = new FluidStackMarshaller(false);
+	
+	/**
+	 * Like {@link #FLUIDSTACK}, but the fluid name and NBT tag are only sent
+	 * as an id once they've been sent on the connection.
+	 * <p>
+	 * Aliases: interned-fluid, interned-fluidstack
+	 * 
+	 * @see com.elytradev.concrete.network.annotation.field.Interned
+	 */
+	public static final Marshaller<FluidStack> INTERNED_FLUIDSTACK = new FluidStackMarshaller(true);
+	
 	
 	/**
 	 * A bytebuf, only writes the readable bytes.
@@ -187,6 +274,83 @@ public final class DefaultMarshallers {
 	public static final Marshaller<? extends ByteBuf> BYTEBUF = new ByteBufMarshaller();
 	
 	
+	/**
+	 * Varint-length-prefixed byte array.
+	 * <p>
+	 * Aliases: i8-array, bytes
+	 */
+	public static final Marshaller<byte[]> BYTE_ARRAY = new ByteArrayMarshaller();
+	/**
+	 * Varint-length-prefixed array of 16-bit integers, copied in bulk.
+	 * <p>
+	 * Aliases: i16-array
+	 */
+	public static final Marshaller<short[]> SHORT_ARRAY = new BulkArrayMarshaller<short[]>(2) {
+		@Override protected int length(short[] a) { return a.length; }
+		@Override protected short[] newArray(int length) { return new short[length]; }
+		@Override protected void put(ByteBuffer buf, short[] a) { buf.asShortBuffer().put(a); }
+		@Override protected void get(ByteBuffer buf, short[] a) { buf.asShortBuffer().get(a); }
+	};
+	/**
+	 * Varint-length-prefixed array of 32-bit integers, copied in bulk.
+	 * <p>
+	 * Aliases: i32-array
+	 */
+	public static final Marshaller<int[]> INT_ARRAY = new BulkArrayMarshaller<int[]>(4) {
+		@Override protected int length(int[] a) { return a.length; }
+		@Override protected int[] newArray(int length) { return new int[length]; }
+		@Override protected void put(ByteBuffer buf, int[] a) { buf.asIntBuffer().put(a); }
+		@Override protected void get(ByteBuffer buf, int[] a) { buf.asIntBuffer().get(a); }
+	};
+	/**
+	 * Varint-length-prefixed array of 64-bit integers, copied in bulk.
+	 * <p>
+	 * Aliases: i64-array
+	 */
+	public static final Marshaller<long[]> LONG_ARRAY = new BulkArrayMarshaller<long[]>(8) {
+		@Override protected int length(long[] a) { return a.length; }
+		@Override protected long[] newArray(int length) { return new long[length]; }
+		@Override protected void put(ByteBuffer buf, long[] a) { buf.asLongBuffer().put(a); }
+		@Override protected void get(ByteBuffer buf, long[] a) { buf.asLongBuffer().get(a); }
+	};
+	/**
+	 * Varint-length-prefixed array of 32-bit floats, copied in bulk.
+	 * <p>
+	 * Aliases: f32-array
+	 */
+	public static final Marshaller<float[]> FLOAT_ARRAY = new BulkArrayMarshaller<float[]>(4) {
+		@Override protected int length(float[] a) { return a.length; }
+		@Override protected float[] newArray(int length) { return new float[length]; }
+		@Override protected void put(ByteBuffer buf, float[] a) { buf.asFloatBuffer().put(a); }
+		@Override protected void get(ByteBuffer buf, float[] a) { buf.asFloatBuffer().get(a); }
+	};
+	/**
+	 * Varint-length-prefixed array of 64-bit floats, copied in bulk.
+	 * <p>
+	 * Aliases: f64-array
+	 */
+	public static final Marshaller<double[]> DOUBLE_ARRAY = new BulkArrayMarshaller<double[]>(8) {
+		@Override protected int length(double[] a) { return a.length; }
+		@Override protected double[] newArray(int length) { return new double[length]; }
+		@Override protected void put(ByteBuffer buf, double[] a) { buf.asDoubleBuffer().put(a); }
+		@Override protected void get(ByteBuffer buf, double[] a) { buf.asDoubleBuffer().get(a); }
+	};
+	/**
+	 * Array of 32-bit integers, each sent as the ZigZag varint difference from
+	 * the one before it. Works for any array, but is only compact for sorted or
+	 * slowly changing ones, such as a list of block indices.
+	 * <p>
+	 * Aliases: sorted-ints, delta-varint
+	 */
+	public static final Marshaller<int[]> SORTED_INT_ARRAY = new SortedIntArrayMarshaller();
+	/**
+	 * A BitSet, as a varint-length-prefixed array of its bytes.
+	 * <p>
+	 * Aliases: bitset
+	 */
+	public static final Marshaller<BitSet> BITSET = new BitSetMarshaller();
+	
+	
 	
 	private static final Map<String, Marshaller<?>> byName = Maps.newHashMap();
 	
@@ -218,8 +382,24 @@ public final class DefaultMarshallers {
 		put(BLOCKPOS, "blockpos");
 		
 		put(STRING, "string", "str", "utf8");
+		put(RESOURCELOCATION, "resourcelocation", "resloc", "identifier");
+		put(INTERNED_STRING, "interned-string", "interned");
+		put(INTERNED_RESOURCELOCATION, "interned-resourcelocation", "interned-resloc");
 		
 		put(ITEMSTACK, "item", "stack", "itemstack");
+		put(COMPACT_ITEMSTACK, "compact-item", "compact-stack");
+		put(INTERNED_ITEMSTACK, "interned-item", "interned-stack");
+		put(FLUIDSTACK, "fluid", "fluidstack");
+		put(INTERNED_FLUIDSTACK, "interned-fluid", "interned-fluidstack");
+		
+		put(BYTE_ARRAY, "i8-array", "bytes");
+		put(SHORT_ARRAY, "i16-array");
+		put(INT_ARRAY, "i32-array");
+		put(LONG_ARRAY, "i64-array");
+		put(FLOAT_ARRAY, "f32-array");
+		put(DOUBLE_ARRAY, "f64-array");
+		put(SORTED_INT_ARRAY, "sorted-ints", "delta-varint");
+		put(BITSET, "bitset");
 	}
 	
 	private static void put(Marshaller<?> m, String... names) {
@@ -261,87 +441,411 @@ public final class DefaultMarshallers {
 		
 	}
 	
-	private static class BlockPosMarshaller implements Marshaller<BlockPos> {
-
+	public static class SetMarshaller<T> implements Marshaller<Set<T>> {
+		private final Marshaller<T> underlying;
+		
+		public SetMarshaller(Marshaller<T> underlying) {
+			this.underlying = underlying;
+		}
+		
 		@Override
-		public BlockPos unmarshal(ByteBuf in) {
-			return BlockPos.fromLong(in.readLong());
+		public Set<T> unmarshal(ByteBuf in) {
+			int size = readLength(in, 1);
+			Set<T> set = Sets.newLinkedHashSetWithExpectedSize(size);
+			for (int i = 0; i < size; i++) {
+				set.add(underlying.unmarshal(in));
+			}
+			return set;
 		}
 
 		@Override
-		public void marshal(ByteBuf out, BlockPos t) {
-			out.writeLong(t.toLong());
+		public void marshal(ByteBuf out, Set<T> set) {
+			if (set == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+			} else {
+				ByteBufUtils.writeVarInt(out, set.size(), 5);
+				for (T t : set) {
+					underlying.marshal(out, t);
+				}
+			}
 		}
-
+		
 	}
 	
-	private static class VarIntMarshaller implements Marshaller<Number> {
-
+	public static class MapMarshaller<K, V> implements Marshaller<Map<K, V>> {
+		private final Marshaller<K> keys;
+		private final Marshaller<V> values;
+		
+		public MapMarshaller(Marshaller<K> keys, Marshaller<V> values) {
+			this.keys = keys;
+			this.values = values;
+		}
+		
 		@Override
-		public Number unmarshal(ByteBuf in) {
-			return ByteBufUtils.readVarInt(in, 5);
+		public Map<K, V> unmarshal(ByteBuf in) {
+			int size = readLength(in, 1);
+			Map<K, V> map = Maps.newLinkedHashMapWithExpectedSize(size);
+			for (int i = 0; i < size; i++) {
+				K k = keys.unmarshal(in);
+				map.put(k, values.unmarshal(in));
+			}
+			return map;
 		}
 
 		@Override
-		public void marshal(ByteBuf out, Number t) {
-			ByteBufUtils.writeVarInt(out, t.intValue(), 5);
+		public void marshal(ByteBuf out, Map<K, V> map) {
+			if (map == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+			} else {
+				ByteBufUtils.writeVarInt(out, map.size(), 5);
+				for (Map.Entry<K, V> en : map.entrySet()) {
+					keys.marshal(out, en.getKey());
+					values.marshal(out, en.getValue());
+				}
+			}
 		}
-
+		
 	}
 	
-	private static class VarIntZigZagMarshaller implements Marshaller<Number> {
-
+	/**
+	 * A marshaller which may use the connection's dictionaries, in which case
+	 * its output depends on the connection it's being sent on.
+	 */
+	private abstract static class DictionaryMarshaller<T> implements Marshaller<T> {
+		protected final boolean interned;
+		
+		public DictionaryMarshaller(boolean interned) {
+			this.interned = interned;
+		}
+	}
+	
+	/**
+	 * @return true if the given marshaller, or one it is built on, writes
+	 * 		differently depending on the connection, and so Messages using it
+	 * 		can't share one encoding between connections
+	 */
+	static boolean isConnectionDependent(Marshaller<?> m) {
+		if (m instanceof DictionaryMarshaller) {
+			return ((DictionaryMarshaller<?>) m).interned;
+		} else if (m instanceof ListMarshaller) {
+			return isConnectionDependent(((ListMarshaller<?>) m).underlying);
+		} else if (m instanceof SetMarshaller) {
+			return isConnectionDependent(((SetMarshaller<?>) m).underlying);
+		} else if (m instanceof MapMarshaller) {
+			return isConnectionDependent(((MapMarshaller<?, ?>) m).keys) || isConnectionDependent(((MapMarshaller<?, ?>) m).values);
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes a varint length, then the whole array in one copy through a
+	 * ByteBuffer view, in the same big-endian format the equivalent list
+	 * would have.
+	 */
+	private abstract static class BulkArrayMarshaller<A> implements Marshaller<A> {
+		private final int elementSize;
+		
+		public BulkArrayMarshaller(int elementSize) {
+			this.elementSize = elementSize;
+		}
+		
+		protected abstract int length(A a);
+		protected abstract A newArray(int length);
+		protected abstract void put(ByteBuffer buf, A a);
+		protected abstract void get(ByteBuffer buf, A a);
+		
 		@Override
-		public Number unmarshal(ByteBuf in) {
-			return MoreByteBufUtils.readZigZagVarInt(in, 5);
+		public A unmarshal(ByteBuf in) {
+			int length = readLength(in, elementSize);
+			A a = newArray(length);
+			int bytes = length * elementSize;
+			get(in.nioBuffer(in.readerIndex(), bytes), a);
+			in.skipBytes(bytes);
+			return a;
 		}
-
+		
 		@Override
-		public void marshal(ByteBuf out, Number t) {
-			MoreByteBufUtils.writeZigZagVarInt(out, t.intValue(), 5);
+		public void marshal(ByteBuf out, A a) {
+			int length = a == null ? 0 : length(a);
+			ByteBufUtils.writeVarInt(out, length, 5);
+			if (length == 0) return;
+			int bytes = length * elementSize;
+			out.ensureWritable(bytes);
+			if (out.hasArray()) {
+				put(ByteBuffer.wrap(out.array(), out.arrayOffset() + out.writerIndex(), bytes), a);
+				out.writerIndex(out.writerIndex() + bytes);
+			} else {
+				// views don't move the position of the buffer they're from
+				ByteBuffer buf = ByteBuffer.allocate(bytes);
+				put(buf, a);
+				out.writeBytes(buf);
+			}
 		}
-
+		
 	}
 	
-	private static class EnumMarshaller<T extends Enum<T>> implements Marshaller<T> {
-		private final Class<T> clazz;
-		private final T[] constants;
+	private static class ByteArrayMarshaller implements Marshaller<byte[]> {
 		
-		public EnumMarshaller(Class<T> clazz) {
-			this.clazz = clazz;
-			this.constants = clazz.getEnumConstants();
+		@Override
+		public byte[] unmarshal(ByteBuf in) {
+			byte[] bytes = new byte[readLength(in, 1)];
+			in.readBytes(bytes);
+			return bytes;
 		}
 		
 		@Override
-		public T unmarshal(ByteBuf in) {
-			int ordinal;
-			if (constants.length < 256) {
-				ordinal = in.readUnsignedByte();
-			} else if (constants.length < 65536) {
-				ordinal = in.readUnsignedShort();
-			} else if (constants.length < 16777216) {
-				ordinal = in.readUnsignedMedium();
+		public void marshal(ByteBuf out, byte[] bytes) {
+			if (bytes == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
 			} else {
-				ordinal = Ints.checkedCast(in.readUnsignedInt());
+				ByteBufUtils.writeVarInt(out, bytes.length, 5);
+				out.writeBytes(bytes);
 			}
-			return constants[ordinal];
 		}
-
+		
+	}
+	
+	private static class SortedIntArrayMarshaller implements Marshaller<int[]> {
+		
 		@Override
-		public void marshal(ByteBuf out, T t) {
-			if (constants.length < 256) {
-				out.writeByte(t.ordinal());
-			} else if (constants.length < 65536) {
-				out.writeShort(t.ordinal());
-			} else if (constants.length < 16777216) {
-				out.writeMedium(t.ordinal());
+		public int[] unmarshal(ByteBuf in) {
+			int[] a = new int[readLength(in, 1)];
+			int last = 0;
+			for (int i = 0; i < a.length; i++) {
+				last += MoreByteBufUtils.readZigZagVarInt(in, 5);
+				a[i] = last;
+			}
+			return a;
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, int[] a) {
+			if (a == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+				return;
+			}
+			ByteBufUtils.writeVarInt(out, a.length, 5);
+			int last = 0;
+			for (int i : a) {
+				MoreByteBufUtils.writeZigZagVarInt(out, i - last, 5);
+				last = i;
+			}
+		}
+		
+	}
+	
+	private static class BitSetMarshaller implements Marshaller<BitSet> {
+		
+		@Override
+		public BitSet unmarshal(ByteBuf in) {
+			return BitSet.valueOf(BYTE_ARRAY.unmarshal(in));
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, BitSet t) {
+			BYTE_ARRAY.marshal(out, t == null ? null : t.toByteArray());
+		}
+		
+	}
+	
+	/**
+	 * Int arrays for any int marshaller, such as varint, which aren't a fixed
+	 * size and can't be copied in bulk.
+	 */
+	private static class IntArrayMarshaller implements Marshaller<int[]> {
+		private final IntMarshaller underlying;
+		
+		public IntArrayMarshaller(IntMarshaller underlying) {
+			this.underlying = underlying;
+		}
+		
+		@Override
+		public int[] unmarshal(ByteBuf in) {
+			int[] a = new int[readLength(in, 1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = underlying.readInt(in);
+			}
+			return a;
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, int[] a) {
+			if (a == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+				return;
+			}
+			ByteBufUtils.writeVarInt(out, a.length, 5);
+			for (int i : a) {
+				underlying.writeInt(out, i);
+			}
+		}
+		
+	}
+	
+	private static class LongArrayMarshaller implements Marshaller<long[]> {
+		private final LongMarshaller underlying;
+		
+		public LongArrayMarshaller(LongMarshaller underlying) {
+			this.underlying = underlying;
+		}
+		
+		@Override
+		public long[] unmarshal(ByteBuf in) {
+			long[] a = new long[readLength(in, 1)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = underlying.readLong(in);
+			}
+			return a;
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, long[] a) {
+			if (a == null) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+				return;
+			}
+			ByteBufUtils.writeVarInt(out, a.length, 5);
+			for (long l : a) {
+				underlying.writeLong(out, l);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Reads a varint length, and makes sure the message is actually long
+	 * enough to hold that many elements before anything is allocated.
+	 */
+	private static int readLength(ByteBuf in, int minElementSize) {
+		int length = ByteBufUtils.readVarInt(in, 5);
+		if (length < 0 || length > in.readableBytes() / minElementSize) {
+			throw new BadMessageException("Length " + length + " is longer than the rest of the message");
+		}
+		return length;
+	}
+	
+	private static class CompactItemStackMarshaller extends DictionaryMarshaller<ItemStack> {
+		
+		public CompactItemStackMarshaller(boolean interned) {
+			super(interned);
+		}
+		
+		@Override
+		public ItemStack unmarshal(ByteBuf in) {
+			int id = ByteBufUtils.readVarInt(in, 5);
+			if (id == 0) return ItemStack.EMPTY;
+			int count = ByteBufUtils.readVarInt(in, 5);
+			int damage = MoreByteBufUtils.readZigZagVarInt(in, 5);
+			NBTTagCompound tag = interned ? ConnectionDictionary.readTag(in) : ByteBufUtils.readTag(in);
+			Item item = Item.getItemById(id - 1);
+			if (item == null) return ItemStack.EMPTY;
+			ItemStack stack = new ItemStack(item, count, damage);
+			stack.setTagCompound(tag);
+			return stack;
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, ItemStack stack) {
+			if (stack.isEmpty()) {
+				ByteBufUtils.writeVarInt(out, 0, 5);
+				return;
+			}
+			Item item = stack.getItem();
+			ByteBufUtils.writeVarInt(out, Item.getIdFromItem(item) + 1, 5);
+			ByteBufUtils.writeVarInt(out, stack.getCount(), 5);
+			MoreByteBufUtils.writeZigZagVarInt(out, stack.getMetadata(), 5);
+			// the same rule vanilla uses for which tags reach the client
+			NBTTagCompound tag = null;
+			if (item.isDamageable() || item.getShareTag()) {
+				tag = item.getNBTShareTag(stack);
+			}
+			if (interned) {
+				ConnectionDictionary.writeTag(out, tag);
+			} else {
+				ByteBufUtils.writeTag(out, tag);
+			}
+		}
+		
+	}
+	
+	private static class FluidStackMarshaller extends DictionaryMarshaller<FluidStack> {
+		
+		public FluidStackMarshaller(boolean interned) {
+			super(interned);
+		}
+		
+		@Override
+		public FluidStack unmarshal(ByteBuf in) {
+			String name = interned ? ConnectionDictionary.readString(in) : ByteBufUtils.readUTF8String(in);
+			int amount = ByteBufUtils.readVarInt(in, 5);
+			NBTTagCompound tag = interned ? ConnectionDictionary.readTag(in) : ByteBufUtils.readTag(in);
+			Fluid fluid = FluidRegistry.getFluid(name);
+			if (fluid == null) {
+				throw new BadMessageException("Unknown fluid " + name);
+			}
+			return new FluidStack(fluid, amount, tag);
+		}
+		
+		@Override
+		public void marshal(ByteBuf out, FluidStack stack) {
+			String name = FluidRegistry.getFluidName(stack);
+			if (interned) {
+				ConnectionDictionary.writeString(out, name);
 			} else {
-				out.writeInt(t.ordinal());
+				ByteBufUtils.writeUTF8String(out, name);
+			}
+			ByteBufUtils.writeVarInt(out, stack.amount, 5);
+			if (interned) {
+				ConnectionDictionary.writeTag(out, stack.tag);
+			} else {
+				ByteBufUtils.writeTag(out, stack.tag);
 			}
 		}
 		
 	}
 	
+	private static class BlockPosMarshaller implements Marshaller<BlockPos> {
+
+		@Override
+		public BlockPos unmarshal(ByteBuf in) {
+			return BlockPos.fromLong(in.readLong());
+		}
+
+		@Override
+		public void marshal(ByteBuf out, BlockPos t) {
+			out.writeLong(t.toLong());
+		}
+
+	}
+	
+	private static class VarIntMarshaller implements IntMarshaller {
+
+		@Override
+		public int readInt(ByteBuf in) {
+			return ByteBufUtils.readVarInt(in, 5);
+		}
+
+		@Override
+		public void writeInt(ByteBuf out, int value) {
+			ByteBufUtils.writeVarInt(out, value, 5);
+		}
+
+	}
+	
+	private static class VarIntZigZagMarshaller implements IntMarshaller {
+
+		@Override
+		public int readInt(ByteBuf in) {
+			return MoreByteBufUtils.readZigZagVarInt(in, 5);
+		}
+
+		@Override
+		public void writeInt(ByteBuf out, int value) {
+			MoreByteBufUtils.writeZigZagVarInt(out, value, 5);
+		}
+
+	}
+	
 	private static class ByteBufMarshaller implements Marshaller<ByteBuf> {
 		
 		@Override
@@ -378,14 +882,53 @@ public final class DefaultMarshallers {
 	}
 	
 	
-	private static <F, R extends Number> Marshaller<? extends Number> weld(Function<Number, F> converter, Serializer<F> serializer, Deserializer<R> deserializer) {
-		return new Marshaller<Number>() {
+	private static IntMarshaller ints(IntSerializer serializer, IntDeserializer deserializer) {
+		return new IntMarshaller() {
 			@Override
-			public void marshal(ByteBuf out, Number number) {
-				serializer.serialize(out, converter.apply(number));
+			public void writeInt(ByteBuf out, int value) {
+				serializer.serialize(out, value);
 			}
 			@Override
-			public R unmarshal(ByteBuf in) {
+			public int readInt(ByteBuf in) {
+				return deserializer.deserialize(in);
+			}
+		};
+	}
+	
+	private static LongMarshaller longs(LongSerializer serializer, LongDeserializer deserializer) {
+		return new LongMarshaller() {
+			@Override
+			public void writeLong(ByteBuf out, long value) {
+				serializer.serialize(out, value);
+			}
+			@Override
+			public long readLong(ByteBuf in) {
+				return deserializer.deserialize(in);
+			}
+		};
+	}
+	
+	private static FloatMarshaller floats(FloatSerializer serializer, FloatDeserializer deserializer) {
+		return new FloatMarshaller() {
+			@Override
+			public void writeFloat(ByteBuf out, float value) {
+				serializer.serialize(out, value);
+			}
+			@Override
+			public float readFloat(ByteBuf in) {
+				return deserializer.deserialize(in);
+			}
+		};
+	}
+	
+	private static DoubleMarshaller doubles(DoubleSerializer serializer, DoubleDeserializer deserializer) {
+		return new DoubleMarshaller() {
+			@Override
+			public void writeDouble(ByteBuf out, double value) {
+				serializer.serialize(out, value);
+			}
+			@Override
+			public double readDouble(ByteBuf in) {
 				return deserializer.deserialize(in);
 			}
 		};
@@ -410,6 +953,30 @@ public final class DefaultMarshallers {
 	private interface Deserializer<T> {
 		T deserialize(ByteBuf in);
 	}
+	private interface IntSerializer {
+		void serialize(ByteBuf out, int i);
+	}
+	private interface IntDeserializer {
+		int deserialize(ByteBuf in);
+	}
+	private interface LongSerializer {
+		void serialize(ByteBuf out, long l);
+	}
+	private interface LongDeserializer {
+		long deserialize(ByteBuf in);
+	}
+	private interface FloatSerializer {
+		void serialize(ByteBuf out, float f);
+	}
+	private interface FloatDeserializer {
+		float deserialize(ByteBuf in);
+	}
+	private interface DoubleSerializer {
+		void serialize(ByteBuf out, double d);
+	}
+	private interface DoubleDeserializer {
+		double deserialize(ByteBuf in);
+	}
 	
 	public static <T> Marshaller<T> getByName(String name) {
 		if (name.endsWith("-list")) {
@@ -417,7 +984,34 @@ public final class DefaultMarshallers {
 			// lists of lists!
 			Marshaller<T> m = getByName(name);
 			if (m != null) {
-				return new ListMarshaller(m);
+				return (Marshaller<T>) new ListMarshaller<>(m);
+			} else {
+				return null;
+			}
+		} else if (name.endsWith("-set")) {
+			Marshaller<T> m = getByName(name.substring(0, name.length() - 4));
+			if (m != null) {
+				return (Marshaller<T>) new SetMarshaller<>(m);
+			} else {
+				return null;
+			}
+		} else if (name.endsWith("-map")) {
+			name = name.substring(0, name.length() - 4);
+			int colon = name.indexOf(':');
+			if (colon == -1) return null;
+			Marshaller<?> keys = getByName(name.substring(0, colon));
+			Marshaller<?> values = getByName(name.substring(colon + 1));
+			if (keys != null && values != null) {
+				return (Marshaller<T>) new MapMarshaller<>(keys, values);
+			} else {
+				return null;
+			}
+		} else if (name.endsWith("-array") && !byName.containsKey(name.toLowerCase(Locale.ROOT))) {
+			Marshaller<?> m = getByName(name.substring(0, name.length() - 6));
+			if (m instanceof IntMarshaller) {
+				return (Marshaller<T>) new IntArrayMarshaller((IntMarshaller) m);
+			} else if (m instanceof LongMarshaller) {
+				return (Marshaller<T>) new LongArrayMarshaller((LongMarshaller) m);
 			} else {
 				return null;
 			}
@@ -464,14 +1058,32 @@ public final class DefaultMarshallers {
 			return (Marshaller<T>) STRING;
 		} else if (BlockPos.class.isAssignableFrom(type)) {
 			return (Marshaller<T>) BLOCKPOS;
+		} else if (ResourceLocation.class.isAssignableFrom(type)) {
+			return (Marshaller<T>) RESOURCELOCATION;
 		} else if (NBTTagCompound.class.isAssignableFrom(type)) {
 			return (Marshaller<T>) NBT;
 		} else if (type.isEnum()) {
-			return new EnumMarshaller(type);
+			return new PackedMarshaller.Ordinal<>(type);
 		} else if (ItemStack.class.isAssignableFrom(type)) {
 			return (Marshaller<T>) ITEMSTACK;
+		} else if (FluidStack.class.isAssignableFrom(type)) {
+			return (Marshaller<T>) FLUIDSTACK;
 		} else if (ByteBuf.class.isAssignableFrom(type)) {
 			return (Marshaller<T>) BYTEBUF;
+		} else if (type == byte[].class) {
+			return (Marshaller<T>) BYTE_ARRAY;
+		} else if (type == short[].class) {
+			return (Marshaller<T>) SHORT_ARRAY;
+		} else if (type == int[].class) {
+			return (Marshaller<T>) INT_ARRAY;
+		} else if (type == long[].class) {
+			return (Marshaller<T>) LONG_ARRAY;
+		} else if (type == float[].class) {
+			return (Marshaller<T>) FLOAT_ARRAY;
+		} else if (type == double[].class) {
+			return (Marshaller<T>) DOUBLE_ARRAY;
+		} else if (BitSet.class.isAssignableFrom(type)) {
+			return (Marshaller<T>) BITSET;
 		}
 		return null;
 	}
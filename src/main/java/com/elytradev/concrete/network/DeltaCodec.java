@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.elytradev.concrete.network.annotation.field.DeltaKey;
+import com.elytradev.concrete.network.annotation.type.Delta;
+import com.elytradev.concrete.network.exception.BadMessageException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Codec for {@link Delta} Messages, which only writes the fields that changed
+ * since the last copy sent over the same connection.
+ * <p>
+ * The header is laid out like the one {@link ReflectiveCodec} writes, with
+ * two extra bits in front and a "changed" bit after the presence bit of every
+ * field that isn't a boolean or a {@link DeltaKey}:
+ * <ul>
+ * <li><b>tracked</b> - the receiver should apply this to, and remember it as,
+ * its last copy. Untracked Messages are always sent in full.</li>
+ * <li><b>new base</b> - the sender had no copy for this key, so the receiver
+ * should start a new one, forgetting its oldest if it is over capacity.</li>
+ * </ul>
+ * Both sides only add keys on "new base" Messages, and evict in the order
+ * keys were added, so they always agree on which keys are remembered.
+ * <p>
+ * The sender compares the encoded bytes of each field, so mutable values that
+ * were changed in place are still noticed. The receiver keeps copies of the
+ * decoded values of mutable types, so that handlers can't change them. Fields are compared as encoded without the connection's string
+ * dictionary, so that only fields that are actually sent can change it.
+ */
+final class DeltaCodec {
+	private static final int TRACKED_BIT = 0;
+	private static final int NEW_BASE_BIT = 1;
+	
+	private final Class<? extends Message> clazz;
+	private final WireField<?>[] fields;
+	private final boolean[] keys;
+	/**
+	 * Whether each field is re-encoded for the connection when it's sent,
+	 * rather than sending the bytes it was compared with.
+	 */
+	private final boolean[] connectionDependent;
+	/**
+	 * The value bit of each boolean field, or the presence bit of each
+	 * optional field, or -1.
+	 */
+	private final int[] valueBits;
+	/**
+	 * The changed bit of each field, or -1 for booleans and keys.
+	 */
+	private final int[] changedBits;
+	private final int headerBytes;
+	private final int capacity;
+	
+	public DeltaCodec(Class<? extends Message> clazz, List<WireField<?>> fields, int capacity) {
+		this.clazz = clazz;
+		this.fields = fields.toArray(new WireField<?>[fields.size()]);
+		this.keys = new boolean[this.fields.length];
+		this.connectionDependent = new boolean[this.fields.length];
+		this.valueBits = new int[this.fields.length];
+		this.changedBits = new int[this.fields.length];
+		this.capacity = capacity;
+		int bits = 2;
+		for (int i = 0; i < this.fields.length; i++) {
+			WireField<?> wf = this.fields[i];
+			keys[i] = wf.getField().getAnnotation(DeltaKey.class) != null;
+			connectionDependent[i] = wf.isConnectionDependent();
+			if (wf.getType() == Boolean.TYPE || wf.isOptional()) {
+				valueBits[i] = bits++;
+			} else {
+				valueBits[i] = -1;
+			}
+			if (wf.getType() == Boolean.TYPE || keys[i]) {
+				changedBits[i] = -1;
+			} else {
+				changedBits[i] = bits++;
+			}
+		}
+		this.headerBytes = (bits + 7) / 8;
+	}
+	
+	/**
+	 * @param history the sender-side history of the connection this is being
+	 * 		encoded for, or null to encode the Message in full without
+	 * 		remembering it
+	 */
+	public void encode(Message m, ByteBuf out, SentHistory history) {
+		byte[][] current = new byte[fields.length][];
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		ConnectionState conn = ConnectionDictionary.enter(null);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				WireField<?> wf = fields[i];
+				if (wf.getType() == Boolean.TYPE) continue;
+				scratch.clear();
+				if (wf.get(m) == null) {
+					// marshal throws for missing non-optional fields
+					wf.marshal(m, scratch);
+					continue;
+				}
+				wf.marshal(m, scratch);
+				current[i] = new byte[scratch.readableBytes()];
+				scratch.readBytes(current[i]);
+			}
+		} finally {
+			ConnectionDictionary.exit(conn);
+			scratch.release();
+		}
+		byte[] header = new byte[headerBytes];
+		boolean[] changed = new boolean[fields.length];
+		if (history == null) {
+			Arrays.fill(changed, true);
+		} else {
+			Key key = keyOf(current);
+			synchronized (history) {
+				byte[][] base = history.get(key);
+				if (base == null) {
+					setBit(header, NEW_BASE_BIT);
+					Arrays.fill(changed, true);
+					history.put(key, current);
+				} else {
+					for (int i = 0; i < fields.length; i++) {
+						if (!Arrays.equals(base[i], current[i])) {
+							changed[i] = true;
+							base[i] = current[i];
+						}
+					}
+				}
+			}
+			setBit(header, TRACKED_BIT);
+		}
+		for (int i = 0; i < fields.length; i++) {
+			WireField<?> wf = fields[i];
+			if (wf.getType() == Boolean.TYPE) {
+				if ((Boolean) wf.get(m)) setBit(header, valueBits[i]);
+				continue;
+			}
+			if (valueBits[i] != -1 && current[i] != null) setBit(header, valueBits[i]);
+			if (changedBits[i] != -1 && changed[i]) setBit(header, changedBits[i]);
+		}
+		out.writeBytes(header);
+		for (int i = 0; i < fields.length; i++) {
+			if (current[i] != null && (keys[i] || changed[i])) {
+				if (connectionDependent[i]) {
+					fields[i].marshal(m, out);
+				} else {
+					out.writeBytes(current[i]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param history the receiver-side history of the connection this was
+	 * 		received from
+	 */
+	public void decode(Message m, ByteBuf in, ReceivedHistory history) {
+		int header = in.readerIndex();
+		in.skipBytes(headerBytes);
+		Object[] values = new Object[fields.length];
+		boolean missing = false;
+		for (int i = 0; i < fields.length; i++) {
+			WireField<?> wf = fields[i];
+			if (wf.getType() == Boolean.TYPE) {
+				((WireField<Boolean>) wf).set(m, isSet(in, header, valueBits[i]));
+				continue;
+			}
+			if (valueBits[i] != -1 && !isSet(in, header, valueBits[i])) continue;
+			if (changedBits[i] == -1 || isSet(in, header, changedBits[i])) {
+				wf.unmarshal(m, in);
+				values[i] = wf.get(m);
+			} else {
+				missing = true;
+			}
+		}
+		if (!isSet(in, header, TRACKED_BIT)) {
+			if (missing) throw new BadMessageException("Untracked " + clazz + " is missing fields");
+			return;
+		}
+		Key key = keyOf(m);
+		if (isSet(in, header, NEW_BASE_BIT)) {
+			if (missing) throw new BadMessageException("New " + clazz + " is missing fields");
+			for (int i = 0; i < fields.length; i++) {
+				values[i] = ((WireField<Object>) fields[i]).copyValue(values[i]);
+			}
+			history.put(key, values);
+			return;
+		}
+		Object[] base = history.get(key);
+		if (base == null) {
+			throw new BadMessageException("Received a delta of " + clazz + " for a key that was never sent in full");
+		}
+		for (int i = 0; i < fields.length; i++) {
+			WireField<?> wf = fields[i];
+			if (wf.getType() == Boolean.TYPE) continue;
+			boolean present = valueBits[i] == -1 || isSet(in, header, valueBits[i]);
+			if (present && values[i] == null) {
+				((WireField<Object>) wf).set(m, ((WireField<Object>) wf).copyValue(base[i]));
+			} else {
+				base[i] = ((WireField<Object>) wf).copyValue(values[i]);
+			}
+		}
+	}
+	
+	private Key keyOf(byte[][] current) {
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				if (!keys[i]) continue;
+				if (current[i] == null) {
+					buf.writeByte(0);
+				} else {
+					buf.writeByte(1);
+					buf.writeBytes(current[i]);
+				}
+			}
+			return new Key(buf);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * Re-encodes the key fields of a received Message, as the sender's
+	 * encoding isn't necessarily byte-for-byte the one we'd produce.
+	 */
+	private Key keyOf(Message m) {
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		ConnectionState conn = ConnectionDictionary.enter(null);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				if (!keys[i]) continue;
+				if (fields[i].get(m) == null) {
+					buf.writeByte(0);
+				} else {
+					buf.writeByte(1);
+					fields[i].marshal(m, buf);
+				}
+			}
+			return new Key(buf);
+		} finally {
+			ConnectionDictionary.exit(conn);
+			buf.release();
+		}
+	}
+	
+	public SentHistory newSentHistory() {
+		return new SentHistory(capacity);
+	}
+	
+	public ReceivedHistory newReceivedHistory() {
+		return new ReceivedHistory(capacity);
+	}
+	
+	private static void setBit(byte[] header, int bit) {
+		header[bit / 8] |= 1 << (bit % 8);
+	}
+	
+	private static boolean isSet(ByteBuf in, int header, int bit) {
+		return (in.getUnsignedByte(header + (bit / 8)) & (1 << (bit % 8))) != 0;
+	}
+	
+	
+	/**
+	 * The encoded key fields of a Message.
+	 */
+	static final class Key {
+		private final byte[] bytes;
+		private final int hash;
+		
+		private Key(ByteBuf buf) {
+			bytes = new byte[buf.readableBytes()];
+			buf.readBytes(bytes);
+			hash = Arrays.hashCode(bytes);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+		}
+	}
+	
+	/**
+	 * Keys in the order they were added, forgetting the oldest past capacity.
+	 * Updating an existing key doesn't move it.
+	 */
+	private static class History<V> extends LinkedHashMap<Key, V> {
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		
+		public History(int capacity) {
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+			return size() > capacity;
+		}
+	}
+	
+	/**
+	 * The last encoded bytes of each field sent for each key.
+	 */
+	static final class SentHistory extends History<byte[][]> {
+		private static final long serialVersionUID = 1L;
+		
+		public SentHistory(int capacity) {
+			super(capacity);
+		}
+	}
+	
+	/**
+	 * The last values of each field received for each key.
+	 */
+	static final class ReceivedHistory extends History<Object[]> {
+		private static final long serialVersionUID = 1L;
+		
+		public ReceivedHistory(int capacity) {
+			super(capacity);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.google.common.collect.Maps;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.gameevent.TickEvent.WorldTickEvent;
+
+/**
+ * The players tracking each entity a Message has been sent about this tick,
+ * so that entities sending several Messages per tick only ask the entity
+ * tracker once. Forgotten at the end of every world tick, so that it
+ * doesn't keep dead entities or logged out players around, and as soon as
+ * a player starts or stops tracking the entity.
+ */
+final class EntityWatchers {
+	private static final EntityPlayerMP[] NONE = new EntityPlayerMP[0];
+	
+	private static final Map<World, EntityWatchers> caches = new WeakHashMap<>();
+	
+	static {
+		MinecraftForge.EVENT_BUS.register(EntityWatchers.class);
+	}
+	
+	private final Map<Entity, EntityPlayerMP[]> watchers = Maps.newIdentityHashMap();
+	
+	/**
+	 * @return the players tracking the given entity, not including itself;
+	 * 		do not modify it
+	 */
+	public static synchronized EntityPlayerMP[] get(WorldServer world, Entity e) {
+		EntityWatchers cache = caches.get(world);
+		if (cache == null) {
+			cache = new EntityWatchers();
+			caches.put(world, cache);
+		}
+		EntityPlayerMP[] players = cache.watchers.get(e);
+		if (players == null) {
+			players = build(world.getEntityTracker().getTrackingPlayers(e));
+			cache.watchers.put(e, players);
+		}
+		return players;
+	}
+	
+	private static EntityPlayerMP[] build(Set<? extends EntityPlayer> tracking) {
+		if (tracking.isEmpty()) return NONE;
+		EntityPlayerMP[] players = new EntityPlayerMP[tracking.size()];
+		int i = 0;
+		for (EntityPlayer ep : tracking) {
+			if (ep instanceof EntityPlayerMP) {
+				players[i++] = (EntityPlayerMP) ep;
+			}
+		}
+		if (i == 0) return NONE;
+		if (i < players.length) {
+			EntityPlayerMP[] trimmed = new EntityPlayerMP[i];
+			System.arraycopy(players, 0, trimmed, 0, i);
+			return trimmed;
+		}
+		return players;
+	}
+	
+	private static synchronized void forget(Entity e) {
+		EntityWatchers cache = caches.get(e.world);
+		if (cache != null) {
+			cache.watchers.remove(e);
+		}
+	}
+	
+	@SubscribeEvent
+	public static synchronized void onWorldTick(WorldTickEvent e) {
+		if (e.phase != Phase.END) return;
+		EntityWatchers cache = caches.get(e.world);
+		if (cache != null) {
+			cache.watchers.clear();
+		}
+	}
+	
+	@SubscribeEvent
+	public static void onStartTracking(PlayerEvent.StartTracking e) {
+		forget(e.getTarget());
+	}
+	
+	@SubscribeEvent
+	public static void onStopTracking(PlayerEvent.StopTracking e) {
+		forget(e.getTarget());
+	}
+	
+	/**
+	 * Cached players refer back to their world, so the weak map can't let
+	 * go of it by itself.
+	 */
+	@SubscribeEvent
+	public static synchronized void onWorldUnload(WorldEvent.Unload e) {
+		caches.remove(e.getWorld());
+	}
+	
+	private EntityWatchers() {}
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The receiving end of a stream, which data is written into as it arrives.
+ * All methods but the completion callbacks are called on the network thread;
+ * the callbacks are run on the main thread.
+ */
+public abstract class IncomingStream {
+	/**
+	 * The amount of bytes still to come, kept by the NetworkContext.
+	 */
+	long remaining;
+	
+	/**
+	 * Write the readable bytes of a chunk of the stream. The chunk is only
+	 * valid for the duration of the call.
+	 */
+	protected abstract void write(ByteBuf chunk) throws IOException;
+	
+	/**
+	 * Called once all data has been written.
+	 * 
+	 * @return the completion callback to run on the main thread
+	 */
+	protected abstract Runnable finish() throws IOException;
+	
+	/**
+	 * Called if the stream will not be finished, as the connection closed or
+	 * it turned out to be malformed.
+	 */
+	protected abstract void abort();
+	
+	
+	/**
+	 * Collect the stream into a heap buffer, to be handed to the given
+	 * callback once complete. The callback owns the buffer.
+	 */
+	public static IncomingStream toBuffer(int length, Consumer<ByteBuf> onComplete) {
+		return new IncomingStream() {
+			private ByteBuf buf = Unpooled.buffer(length, length);
+			
+			@Override
+			protected void write(ByteBuf chunk) {
+				buf.writeBytes(chunk);
+			}
+			
+			@Override
+			protected Runnable finish() {
+				ByteBuf result = buf;
+				buf = null;
+				return () -> onComplete.accept(result);
+			}
+			
+			@Override
+			protected void abort() {
+				buf = null;
+			}
+		};
+	}
+	
+	/**
+	 * Write the stream to the given file, truncating it first, and hand the
+	 * file to the given callback once complete.
+	 */
+	public static IncomingStream toFile(File file, Consumer<File> onComplete) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(0);
+		return new IncomingStream() {
+			@Override
+			protected void write(ByteBuf chunk) throws IOException {
+				while (chunk.isReadable()) {
+					chunk.readBytes(channel, chunk.readableBytes());
+				}
+			}
+			
+			@Override
+			protected Runnable finish() throws IOException {
+				channel.close();
+				return () -> onComplete.accept(file);
+			}
+			
+			@Override
+			protected void abort() {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+		};
+	}
+	
+	/**
+	 * A stream nobody wanted.
+	 */
+	static IncomingStream discard() {
+		return new IncomingStream() {
+			@Override
+			protected void write(ByteBuf chunk) {}
+			
+			@Override
+			protected Runnable finish() {
+				return null;
+			}
+			
+			@Override
+			protected void abort() {}
+		};
+	}
+}
@@ -29,18 +29,23 @@
 
 package com.elytradev.concrete.network;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
 import com.elytradev.concrete.network.annotation.type.Asynchronous;
+import com.elytradev.concrete.network.annotation.type.Offloaded;
 import com.elytradev.concrete.network.annotation.type.ReceivedOn;
+import com.elytradev.concrete.network.annotation.type.Recyclable;
 import com.elytradev.concrete.network.exception.BadMessageException;
 import com.elytradev.concrete.network.exception.WrongSideException;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.network.NetHandlerPlayClient;
@@ -50,13 +55,13 @@ import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.network.Packet;
 import net.minecraft.network.play.INetHandlerPlayClient;
 import net.minecraft.network.play.INetHandlerPlayServer;
+import net.minecraft.server.management.PlayerChunkMapEntry;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.util.math.Vec3i;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
-import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
@@ -65,9 +70,11 @@ public abstract class Message {
 	private static final class ClassInfo {
 		public final boolean async;
 		public final Side side;
-		public ClassInfo(boolean async, Side side) {
+		public final boolean recyclable;
+		public ClassInfo(boolean async, Side side, boolean recyclable) {
 			this.async = async;
 			this.side = side;
+			this.recyclable = recyclable;
 		}
 	}
 	private static final Map<Class<?>, ClassInfo> classInfo = Maps.newHashMap();
@@ -77,6 +84,11 @@ public abstract class Message {
 	
 	private transient final Side side;
 	private transient final boolean async;
+	private transient final boolean recyclable;
+	/**
+	 * True while this Message is idle in its {@link MessagePool}.
+	 */
+	transient boolean pooled = false;
 	
 	public Message(NetworkContext ctx) {
 		this.ctx = ctx;
@@ -91,10 +103,12 @@ public abstract class Message {
 			}
 			
 			async = getClass().getDeclaredAnnotation(Asynchronous.class) != null;
-			classInfo.put(getClass(), new ClassInfo(async, side));
+			recyclable = getClass().isAnnotationPresent(Recyclable.class);
+			classInfo.put(getClass(), new ClassInfo(async, side, recyclable));
 		} else {
 			async = ci.async;
 			side = ci.side;
+			recyclable = ci.recyclable;
 		}
 		
 	}
@@ -102,13 +116,19 @@ public abstract class Message {
 	@SideOnly(Side.CLIENT)
 	void doHandleClient() {
 		if (async) {
-			handle(Minecraft.getMinecraft().player);
+			handleAndRecycle(Minecraft.getMinecraft().player);
 		} else {
 			Minecraft.getMinecraft().addScheduledTask(new Runnable() {
 				@Override
 				@SideOnly(Side.CLIENT)
 				public void run() {
-					handle(Minecraft.getMinecraft().player);
+					long start = System.nanoTime();
+					try {
+						handle(Minecraft.getMinecraft().player);
+						ctx.recordHandled(Message.this, System.nanoTime() - start);
+					} finally {
+						recycle();
+					}
 				}
 			});
 		}
@@ -116,12 +136,71 @@ public abstract class Message {
 	
 	void doHandleServer(EntityPlayer sender) {
 		if (async) {
-			handle(sender);
+			handleAndRecycle(sender);
+		} else {
+			((WorldServer) sender.world).addScheduledTask(() -> {
+				long start = System.nanoTime();
+				try {
+					handle(sender);
+					ctx.recordHandled(this, System.nanoTime() - start);
+				} finally {
+					recycle();
+				}
+			});
+		}
+	}
+	
+	void doHandleOn(Executor lane, @Nullable EntityPlayer sender) {
+		if (side.isServer()) {
+			lane.execute(() -> handleAndRecycle(sender));
+		} else {
+			doHandleClientOn(lane);
+		}
+	}
+	
+	@SideOnly(Side.CLIENT)
+	private void doHandleClientOn(Executor lane) {
+		lane.execute(() -> handleAndRecycle(Minecraft.getMinecraft().player));
+	}
+	
+	private void handleAndRecycle(EntityPlayer player) {
+		try {
+			handle(player);
+		} finally {
+			recycle();
+		}
+	}
+	
+	/**
+	 * Return this Message to its pool, if it's {@link Recyclable}, for
+	 * {@link NetworkContext#obtain(Class)} to hand out again. Call this once
+	 * done sending a Message that was obtained, and don't touch it afterwards.
+	 * Does nothing for other Messages.
+	 */
+	public final void recycle() {
+		if (recyclable) {
+			ctx.recycle(this);
+		}
+	}
+	
+	/**
+	 * Run the given task on the main thread of the side this Message is
+	 * received on. For use by handlers of {@link Offloaded} Messages, which
+	 * must not touch the world themselves.
+	 */
+	protected final ListenableFuture<Object> runOnMainThread(Runnable task) {
+		if (side.isServer()) {
+			return FMLCommonHandler.instance().getMinecraftServerInstance().addScheduledTask(task);
 		} else {
-			((WorldServer) sender.world).addScheduledTask(() -> handle(sender));
+			return runOnClientThread(task);
 		}
 	}
 	
+	@SideOnly(Side.CLIENT)
+	private ListenableFuture<Object> runOnClientThread(Runnable task) {
+		return Minecraft.getMinecraft().addScheduledTask(task);
+	}
+	
 	/**
 	 * Handles this Message when received.
 	 *
@@ -140,9 +219,7 @@ public abstract class Message {
 	public final void sendTo(EntityPlayer player) {
 		if (side.isServer()) wrongSide();
 		if (player instanceof EntityPlayerMP) {
-			for (Packet<INetHandlerPlayClient> p : toClientboundVanillaPackets()) {
-				((EntityPlayerMP) player).connection.sendPacket(p);
-			}
+			ctx.send((EntityPlayerMP) player, ctx.prepare(this));
 		}
 	}
 	
@@ -220,13 +297,11 @@ public abstract class Message {
 	public final void sendToAllAroundExcept(World world, double x, double y, double z, double radius, @Nullable EntityPlayer exclude) {
 		if (side.isServer()) wrongSide();
 		double sq = radius * radius;
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-		for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
-			if (ep == exclude) continue;
+		Outbound out = ctx.prepare(this);
+		for (EntityPlayerMP ep : PlayerGrid.get(world).getPlayersNear(world, x, z, radius)) {
+			if (ep == exclude || ep.world != world || ep.isDead) continue;
 			if (ep.getDistanceSq(x, y, z) <= sq) {
-				for (Packet<INetHandlerPlayClient> packet : packets) {
-					ep.connection.sendPacket(packet);
-				}
+				ctx.send(ep, out);
 			}
 		}
 	}
@@ -246,19 +321,50 @@ public abstract class Message {
 	public final void sendToAllWatchingExcept(World world, BlockPos pos, @Nullable EntityPlayer exclude) {
 		if (side.isServer()) wrongSide();
 		if (world instanceof WorldServer) {
-			WorldServer srv = (WorldServer) world;
-			Chunk c = srv.getChunk(pos);
-			if (srv.getPlayerChunkMap().contains(c.x, c.z)) {
-				List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-				for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
+			PlayerChunkMapEntry entry = ChunkWatchers.getEntry((WorldServer) world, pos);
+			if (entry != null) {
+				Outbound out = ctx.prepare(this);
+				for (EntityPlayerMP ep : ChunkWatchers.getPlayers(entry)) {
 					if (ep == exclude) continue;
-					if (srv.getPlayerChunkMap().isPlayerWatchingChunk(ep, c.x, c.z)) {
-						for (Packet<INetHandlerPlayClient> packet : packets) {
-							ep.connection.sendPacket(packet);
-						}
-					}
+					ctx.send(ep, out);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * For use on the server-side. Sends this Message once to every player that
+	 * can see any of the given blocks.
+	 */
+	public final void sendToAllWatching(World world, Iterable<BlockPos> positions) {
+		sendToAllWatchingExcept(world, positions, null);
+	}
+	
+	/**
+	 * For use on the server-side. Sends this Message once to every player that
+	 * can see any of the given blocks, except the given player.
+	 */
+	public final void sendToAllWatchingExcept(World world, Iterable<BlockPos> positions, @Nullable EntityPlayer exclude) {
+		if (side.isServer()) wrongSide();
+		if (world instanceof WorldServer) {
+			WorldServer srv = (WorldServer) world;
+			Set<PlayerChunkMapEntry> entries = Sets.newIdentityHashSet();
+			for (BlockPos pos : positions) {
+				PlayerChunkMapEntry entry = ChunkWatchers.getEntry(srv, pos);
+				if (entry != null) {
+					entries.add(entry);
 				}
 			}
+			if (entries.isEmpty()) return;
+			Set<EntityPlayerMP> players = Sets.newIdentityHashSet();
+			for (PlayerChunkMapEntry entry : entries) {
+				players.addAll(ChunkWatchers.getPlayers(entry));
+			}
+			players.remove(exclude);
+			Outbound out = ctx.prepare(this);
+			for (EntityPlayerMP ep : players) {
+				ctx.send(ep, out);
+			}
 		}
 	}
 	
@@ -279,6 +385,32 @@ public abstract class Message {
 	}
 	
 	
+	/**
+	 * For use on the server-side. Sends this Message to every player that has
+	 * {@link NetworkContext#subscribe subscribed} to the given topic at the
+	 * given tile entity, and is still in range of it.
+	 */
+	public final void sendToSubscribers(TileEntity te, String topic) {
+		sendToSubscribers(te.getWorld(), te.getPos(), topic);
+	}
+	
+	/**
+	 * For use on the server-side. Sends this Message to every player that has
+	 * {@link NetworkContext#subscribe subscribed} to the given topic at the
+	 * given position, and is still in range of it.
+	 */
+	public final void sendToSubscribers(World world, BlockPos pos, String topic) {
+		if (side.isServer()) wrongSide();
+		if (world instanceof WorldServer) {
+			List<EntityPlayerMP> players = ctx.getSubscribers((WorldServer) world, pos, topic);
+			if (players.isEmpty()) return;
+			Outbound out = ctx.prepare(this);
+			for (EntityPlayerMP ep : players) {
+				ctx.send(ep, out);
+			}
+		}
+	}
+	
 	/**
 	 * For use on the server-side. Sends this Message to every player that can
 	 * see the given entity.
@@ -294,19 +426,33 @@ public abstract class Message {
 	public final void sendToAllWatchingExcept(Entity e, @Nullable EntityPlayer exclude) {
 		if (side.isServer()) wrongSide();
 		if (e.world instanceof WorldServer) {
-			WorldServer srv = (WorldServer) e.world;
-			List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-			for (EntityPlayer ep : srv.getEntityTracker().getTrackingPlayers(e)) {
+			Outbound out = ctx.prepare(this);
+			for (EntityPlayerMP ep : EntityWatchers.get((WorldServer) e.world, e)) {
 				if (ep == exclude) continue;
-				if (ep instanceof EntityPlayerMP) {
-					for (Packet<INetHandlerPlayClient> packet : packets) {
-						((EntityPlayerMP) ep).connection.sendPacket(packet);
-					}
-				}
+				ctx.send(ep, out);
 			}
 		}
 	}
 	
+	/**
+	 * For use on the server-side. Sends all the given Messages, in order, to
+	 * every player that can see the given entity. They're encoded once and
+	 * framed together, so each player gets a single packet for all of them,
+	 * sent as {@link com.elytradev.concrete.network.annotation.type.Priority.Level#NORMAL NORMAL}
+	 * priority. All of the Messages must belong to the same NetworkContext.
+	 */
+	public static void sendManyToAllWatching(Entity e, Message... messages) {
+		if (messages.length == 0) return;
+		NetworkContext ctx = messages[0].ctx;
+		for (Message m : messages) {
+			if (m.side.isServer()) m.wrongSide();
+			if (m.ctx != ctx) throw new IllegalArgumentException("Cannot send Messages from different NetworkContexts together");
+		}
+		if (e.world instanceof WorldServer) {
+			ctx.sendMany(EntityWatchers.get((WorldServer) e.world, e), messages);
+		}
+	}
+	
 	
 	/**
 	 * For use on the server-side. Sends this Message to every player that can
@@ -324,20 +470,13 @@ public abstract class Message {
 	public final void sendToAllWatchingAndSelfExcept(Entity e, @Nullable EntityPlayer exclude) {
 		if (side.isServer()) wrongSide();
 		if (e.world instanceof WorldServer) {
-			WorldServer srv = (WorldServer) e.world;
-			List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-			for (EntityPlayer ep : srv.getEntityTracker().getTrackingPlayers(e)) {
+			Outbound out = ctx.prepare(this);
+			for (EntityPlayerMP ep : EntityWatchers.get((WorldServer) e.world, e)) {
 				if (ep == exclude) continue;
-				if (ep instanceof EntityPlayerMP) {
-					for (Packet<INetHandlerPlayClient> packet : packets) {
-						((EntityPlayerMP) ep).connection.sendPacket(packet);
-					}
-				}
+				ctx.send(ep, out);
 			}
 			if (e instanceof EntityPlayerMP) {
-				for (Packet<INetHandlerPlayClient> packet : packets) {
-					((EntityPlayerMP) e).connection.sendPacket(packet);
-				}
+				ctx.send((EntityPlayerMP) e, out);
 			}
 		}
 	}
@@ -355,12 +494,10 @@ public abstract class Message {
 	 */
 	public final void sendToAllInExcept(World world, @Nullable EntityPlayer exclude) {	
 		if (side.isServer()) wrongSide();
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
+		Outbound out = ctx.prepare(this);
 		for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
 			if (ep == exclude) continue;
-			for (Packet<INetHandlerPlayClient> packet : packets) {
-				ep.connection.sendPacket(packet);
-			}
+			ctx.send(ep, out);
 		}
 	}
 	
@@ -372,11 +509,9 @@ public abstract class Message {
 	 */
 	public final void sendToEveryone() {
 		if (side.isServer()) wrongSide();
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
+		Outbound out = ctx.prepare(this);
 		for (EntityPlayerMP ep : FMLCommonHandler.instance().getMinecraftServerInstance().getPlayerList().getPlayers()) {
-			for (Packet<INetHandlerPlayClient> packet : packets) {
-				ep.connection.sendPacket(packet);
-			}
+			ctx.send(ep, out);
 		}
 	}
 	
@@ -389,7 +524,7 @@ public abstract class Message {
 		if (side.isClient()) wrongSide();
 		NetHandlerPlayClient conn = Minecraft.getMinecraft().getConnection();
 		if (conn == null) throw new IllegalStateException("Cannot send a message while not connected");
-		conn.sendPacket(toServerboundVanillaPacket());
+		ctx.sendToServer(conn.getNetworkManager(), this);
 	}
 	
 	/**
@@ -397,7 +532,7 @@ public abstract class Message {
 	 * use cases.
 	 */
 	public final Packet<INetHandlerPlayServer> toServerboundVanillaPacket() {
-		return ctx.getPacketFrom(this).toC17Packet();
+		return ctx.prepare(this).payloadFor(null).toServerboundPacket();
 	}
 	
 	/**
@@ -405,11 +540,7 @@ public abstract class Message {
 	 * use cases.
 	 */
 	public final List<Packet<INetHandlerPlayClient>> toClientboundVanillaPackets() {
-		try {
-			return ctx.getPacketFrom(this).toS3FPackets();
-		} catch (IOException e) {
-			throw new BadMessageException(e);
-		}
+		return ctx.prepare(this).payloadFor(null).toClientboundPackets();
 	}
 	
 	
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.base.Throwables;
+
+/**
+ * Works out once, when a Message class is registered, how to construct it,
+ * so that receiving a packet is a plain call rather than a reflective one.
+ */
+final class MessageFactory {
+	
+	/**
+	 * @return a function calling the class's {@code (NetworkContext)}
+	 * 		constructor, or its no-arg one if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	public static Function<NetworkContext, Message> create(Class<? extends Message> clazz) {
+		Constructor<? extends Message> cons;
+		try {
+			cons = clazz.getDeclaredConstructor(NetworkContext.class);
+		} catch (NoSuchMethodException e) {
+			try {
+				cons = clazz.getDeclaredConstructor();
+			} catch (NoSuchMethodException e2) {
+				throw new BadMessageException(clazz + " must have a constructor taking a NetworkContext, or no arguments");
+			}
+		}
+		boolean withContext = cons.getParameterCount() == 1;
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle handle;
+		try {
+			cons.setAccessible(true);
+			handle = lookup.unreflectConstructor(cons);
+		} catch (IllegalAccessException e) {
+			throw new BadMessageException("Cannot access constructor of " + clazz, e);
+		}
+		
+		if (Modifier.isPublic(clazz.getModifiers()) && Modifier.isPublic(cons.getModifiers()) && isVisible(clazz)) {
+			// spin a class that calls the constructor directly, so the JIT can inline it
+			try {
+				if (withContext) {
+					CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+							MethodType.methodType(Function.class),
+							MethodType.methodType(Object.class, Object.class),
+							handle,
+							MethodType.methodType(clazz, NetworkContext.class));
+					return (Function<NetworkContext, Message>) site.getTarget().invoke();
+				} else {
+					CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+							MethodType.methodType(Supplier.class),
+							MethodType.methodType(Object.class),
+							handle,
+							MethodType.methodType(clazz));
+					Supplier<Message> supplier = (Supplier<Message>) site.getTarget().invoke();
+					return ctx -> supplier.get();
+				}
+			} catch (Throwable t) {
+				// the constructor isn't visible from here after all; fall through
+			}
+		}
+		
+		MethodHandle exact = (withContext ? handle : MethodHandles.dropArguments(handle, 0, NetworkContext.class))
+				.asType(MethodType.methodType(Message.class, NetworkContext.class));
+		return ctx -> {
+			try {
+				return (Message) exact.invokeExact(ctx);
+			} catch (Throwable t) {
+				throw Throwables.propagate(t);
+			}
+		};
+	}
+	
+	/**
+	 * The spun class is linked as if it were in this package, so it can only
+	 * refer to classes that can be found from here.
+	 */
+	private static boolean isVisible(Class<?> clazz) {
+		try {
+			return Class.forName(clazz.getName(), false, MessageFactory.class.getClassLoader()) == clazz;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	private MessageFactory() {}
+}
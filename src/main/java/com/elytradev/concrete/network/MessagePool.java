@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.annotation.Nullable;
+
+/**
+ * Idle instances of a {@link com.elytradev.concrete.network.annotation.type.Recyclable Recyclable}
+ * Message type. Messages are usually decoded on the netty thread and handled
+ * on another, so the pool is shared between threads rather than confined to
+ * one; an array-backed queue keeps recycling itself from allocating.
+ */
+final class MessagePool {
+	private final MessageType type;
+	private final ArrayBlockingQueue<Message> idle;
+	
+	public MessagePool(MessageType type, int capacity) {
+		this.type = type;
+		this.idle = new ArrayBlockingQueue<>(capacity);
+	}
+	
+	/**
+	 * @return an idle instance, or null if there are none
+	 */
+	@Nullable
+	public Message poll() {
+		Message m = idle.poll();
+		if (m != null) {
+			m.pooled = false;
+		}
+		return m;
+	}
+	
+	public void recycle(Message m) {
+		synchronized (m) {
+			if (m.pooled) throw new IllegalStateException(m.getClass() + " was recycled twice");
+			m.pooled = true;
+		}
+		for (WireField<?> wf : type.fields) {
+			wf.reset(m);
+		}
+		idle.offer(m);
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for one Message class on one NetworkContext. Counters are
+ * striped, so they're cheap enough to always be on; encode and decode times
+ * are sampled, and the totals returned for them are estimates.
+ */
+public final class MessageStats {
+	/**
+	 * One in this many encodes and decodes is timed.
+	 */
+	static final int SAMPLE_RATE = 16;
+	
+	private final Class<? extends Message> clazz;
+	
+	private final LongAdder sentCount = new LongAdder();
+	private final LongAdder sentBytes = new LongAdder();
+	private final LongAccumulator maxSentBytes = new LongAccumulator(Math::max, 0);
+	private final LongAdder encodeNanos = new LongAdder();
+	
+	private final LongAdder receivedCount = new LongAdder();
+	private final LongAdder receivedBytes = new LongAdder();
+	private final LongAccumulator maxReceivedBytes = new LongAccumulator(Math::max, 0);
+	private final LongAdder decodeNanos = new LongAdder();
+	
+	private final LongAdder handleNanos = new LongAdder();
+	
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder coalescedCount = new LongAdder();
+	
+	MessageStats(Class<? extends Message> clazz) {
+		this.clazz = clazz;
+	}
+	
+	static boolean shouldSample() {
+		return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+	}
+	
+	void recordSent(int bytes) {
+		sentCount.increment();
+		sentBytes.add(bytes);
+		maxSentBytes.accumulate(bytes);
+	}
+	
+	void recordEncodeSample(long nanos) {
+		encodeNanos.add(nanos * SAMPLE_RATE);
+	}
+	
+	void recordReceived(int bytes) {
+		receivedCount.increment();
+		receivedBytes.add(bytes);
+		maxReceivedBytes.accumulate(bytes);
+	}
+	
+	void recordDecodeSample(long nanos) {
+		decodeNanos.add(nanos * SAMPLE_RATE);
+	}
+	
+	void recordHandled(long nanos) {
+		handleNanos.add(nanos);
+	}
+	
+	void recordDropped() {
+		droppedCount.increment();
+	}
+	
+	void recordCoalesced() {
+		coalescedCount.increment();
+	}
+	
+	
+	public Class<? extends Message> getMessageClass() {
+		return clazz;
+	}
+	
+	/**
+	 * @return the amount of times this Message was sent to a connection,
+	 * 		counting each recipient separately
+	 */
+	public long getSentCount() {
+		return sentCount.sum();
+	}
+	
+	/**
+	 * @return the total bytes sent, after compression but not counting
+	 * 		batch framing
+	 */
+	public long getSentBytes() {
+		return sentBytes.sum();
+	}
+	
+	public long getMaxSentBytes() {
+		return maxSentBytes.get();
+	}
+	
+	/**
+	 * @return an estimate of the total time spent encoding, in nanoseconds
+	 */
+	public long getEncodeNanos() {
+		return encodeNanos.sum();
+	}
+	
+	public long getReceivedCount() {
+		return receivedCount.sum();
+	}
+	
+	/**
+	 * @return the total bytes received, after decompression
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes.sum();
+	}
+	
+	public long getMaxReceivedBytes() {
+		return maxReceivedBytes.get();
+	}
+	
+	/**
+	 * @return an estimate of the total time spent decoding, in nanoseconds
+	 */
+	public long getDecodeNanos() {
+		return decodeNanos.sum();
+	}
+	
+	/**
+	 * @return the total time spent handling this Message on the main thread,
+	 * 		in nanoseconds. {@link com.elytradev.concrete.network.annotation.type.Asynchronous Asynchronous}
+	 * 		Messages aren't counted.
+	 */
+	public long getHandleNanos() {
+		return handleNanos.sum();
+	}
+	
+	/**
+	 * @return the amount of received Messages dropped for going over their
+	 * 		{@link com.elytradev.concrete.network.annotation.type.RateLimited RateLimited}
+	 * 		limit, or for their worker lane being full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+	
+	/**
+	 * @return the amount of received Messages that were replaced by a newer
+	 * 		one while waiting for their rate limit
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.sum();
+	}
+	
+	public void reset() {
+		sentCount.reset();
+		sentBytes.reset();
+		maxSentBytes.reset();
+		encodeNanos.reset();
+		receivedCount.reset();
+		receivedBytes.reset();
+		maxReceivedBytes.reset();
+		decodeNanos.reset();
+		handleNanos.reset();
+		droppedCount.reset();
+		coalescedCount.reset();
+	}
+}
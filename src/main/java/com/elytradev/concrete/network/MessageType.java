@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import com.elytradev.concrete.network.annotation.type.Offloaded;
+import com.elytradev.concrete.network.annotation.type.Priority;
+import com.elytradev.concrete.network.annotation.type.RateLimited;
+import com.elytradev.concrete.network.annotation.type.Recyclable;
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.collect.Maps;
+
+/**
+ * Everything a {@link NetworkContext} works out about a Message class when it
+ * is registered, so that sending and receiving don't have to.
+ */
+final class MessageType {
+	public final Class<? extends Message> clazz;
+	public final int id;
+	public final Function<NetworkContext, Message> factory;
+	public final List<WireField<?>> fields;
+	public final Map<String, WireField<?>> fieldsByName = Maps.newHashMap();
+	public final MessageCodec codec;
+	/**
+	 * Used instead of {@link #codec} for {@link com.elytradev.concrete.network.annotation.type.Delta Delta}
+	 * types, whose encoding depends on the connection.
+	 */
+	@Nullable
+	public final DeltaCodec delta;
+	public final boolean compressed;
+	/**
+	 * True if any field is written differently depending on the connection,
+	 * such as an {@link com.elytradev.concrete.network.annotation.field.Interned Interned}
+	 * string.
+	 */
+	public final boolean interned;
+	public final boolean offloaded;
+	public final Priority.Level priority;
+	/**
+	 * Idle instances of this type, if it's {@link Recyclable}.
+	 */
+	@Nullable
+	public final MessagePool pool;
+	@Nullable
+	public final RateLimited rateLimit;
+	public final MessageStats stats;
+	
+	/**
+	 * Moving average of the encoded size of this type, used to size the
+	 * buffer for the next encode. Races between threads just lose a sample.
+	 */
+	private int sizeEstimate = 32;
+	
+	public MessageType(Class<? extends Message> clazz, int id, Function<NetworkContext, Message> factory, List<WireField<?>> fields, MessageCodec codec, @Nullable DeltaCodec delta, boolean compressed) {
+		this.clazz = clazz;
+		this.id = id;
+		this.factory = factory;
+		this.fields = fields;
+		for (WireField<?> wf : fields) {
+			fieldsByName.put(wf.getField().getName(), wf);
+		}
+		this.codec = codec;
+		this.delta = delta;
+		this.compressed = compressed;
+		boolean interned = false;
+		for (WireField<?> wf : fields) {
+			interned |= wf.isConnectionDependent();
+		}
+		this.interned = interned;
+		this.offloaded = clazz.isAnnotationPresent(Offloaded.class);
+		Priority p = clazz.getDeclaredAnnotation(Priority.class);
+		this.priority = p == null ? Priority.Level.NORMAL : p.value();
+		if (isConnectionDependent() && priority != Priority.Level.NORMAL) {
+			throw new BadMessageException("@Priority cannot be used on " + clazz + ", as its interned fields and delta bases must arrive in the order they were encoded in");
+		}
+		this.rateLimit = clazz.getDeclaredAnnotation(RateLimited.class);
+		Recyclable r = clazz.getDeclaredAnnotation(Recyclable.class);
+		this.pool = r == null ? null : new MessagePool(this, r.capacity());
+		this.stats = new MessageStats(clazz);
+	}
+	
+	/**
+	 * @return a buffer capacity that should fit the next encoded message of
+	 * 		this type without growing
+	 */
+	public int getSizeEstimate() {
+		int est = sizeEstimate;
+		return est + (est / 4) + 8;
+	}
+	
+	/**
+	 * @return true if this type has to be encoded separately for each
+	 * 		connection
+	 */
+	public boolean isConnectionDependent() {
+		return delta != null || interned;
+	}
+	
+	public void recordSize(int size) {
+		sizeEstimate += (size - sizeEstimate) / 8;
+	}
+}
@@ -29,38 +29,70 @@
 
 package com.elytradev.concrete.network;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.function.Consumer;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 import com.elytradev.concrete.common.ConcreteLog;
 import com.elytradev.concrete.common.ShadingValidator;
-import com.elytradev.concrete.network.annotation.field.Optional;
+import com.elytradev.concrete.network.DeltaCodec.ReceivedHistory;
+import com.elytradev.concrete.network.DeltaCodec.SentHistory;
+import com.elytradev.concrete.network.annotation.type.Compressed;
+import com.elytradev.concrete.network.annotation.type.Delta;
+import com.elytradev.concrete.network.annotation.type.Offloaded;
+import com.elytradev.concrete.network.annotation.type.Priority;
+import com.elytradev.concrete.network.annotation.type.RateLimited;
+import com.elytradev.concrete.network.annotation.type.RateLimited.Overflow;
+import com.elytradev.concrete.network.annotation.type.Recyclable;
 import com.elytradev.concrete.network.exception.BadMessageException;
 import com.elytradev.concrete.network.exception.WrongSideException;
-import com.elytradev.concrete.reflect.instanciator.Instanciator;
-import com.elytradev.concrete.reflect.instanciator.Instanciators;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Queues;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.network.NetHandlerPlayClient;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.network.NetHandlerPlayServer;
-import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.INetHandlerPlayClient;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedInEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedOutEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.FMLNetworkEvent.ClientCustomPacketEvent;
 import net.minecraftforge.fml.common.network.FMLNetworkEvent.ServerCustomPacketEvent;
-import net.minecraftforge.fml.common.network.internal.FMLProxyPacket;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
@@ -69,49 +101,375 @@ public final class NetworkContext {
 		ShadingValidator.ensureShaded();
 	}
 	
-	protected static final Map<Class<? extends Message>, Instanciator<? extends Message>> instanciators = Maps.newHashMap();
+	/**
+	 * Packet ids from here up are used for framing rather than Messages.
+	 * Messages with higher ids are written as {@code [0xF0][varint id - 0xF0]}.
+	 */
+	static final int FIRST_RESERVED_ID = 0xF0;
+	static final int EXTENDED_ID = 0xF0;
+	static final int BATCH_ID = 0xFF;
+	static final int COMPRESSED_ID = 0xFE;
+	static final int STREAM_ID = 0xFD;
+	static final int LOOPBACK_ID = 0xFC;
+	static final int SCHEMA_ID = 0xFB;
+	static final int SELF_DESCRIBED_ID = 0xFA;
+	static final int SUBSCRIBE_ID = 0xF9;
+	
+	/**
+	 * Packet ids are 16-bit.
+	 */
+	static final int MAX_MESSAGES = 65536;
+	
+	private static final int STREAM_START = 0;
+	private static final int STREAM_DATA = 1;
+	private static final int STREAM_CHUNK_SIZE = 8192;
+	
+	private static final int MAX_BATCH_SIZE = 65536;
+	
+	private static final int MAX_TOPIC_LENGTH = 64;
+	private static final int MAX_SUBSCRIPTIONS = 64;
+	
+	protected final Map<Class<? extends Message>, MessageType> types = Maps.newHashMap();
+	protected final List<MessageType> typesById = Lists.newArrayList();
+	protected final Map<String, MessageType> typesByName = Maps.newHashMap();
 	
-	protected final BiMap<Class<? extends Message>, Integer> packetIds = HashBiMap.create();
-	protected final Map<Class<? extends Message>, List<WireField<?>>> marshallers = Maps.newHashMap();
-	protected final Multiset<Class<? extends Message>> booleanCount = HashMultiset.create();
-	protected final Multiset<Class<? extends Message>> optionalCount = HashMultiset.create();
+	/**
+	 * A hash of everything registered so far that affects the wire format,
+	 * or 0 if it needs working out again.
+	 */
+	private volatile long fingerprint = 0;
 	
 	protected final String channel;
 	
+	private final AttributeKey<ConnectionState> stateKey;
+	private final Queue<ConnectionState> awaitingFlush = Queues.newConcurrentLinkedQueue();
+	
 	private int nextPacketId = 0;
+	private boolean generateCodecs = false;
+	private boolean batching = false;
+	private int compressionThreshold = -1;
+	
+	private boolean loopback = false;
+	/**
+	 * Copies of Messages sent over a local connection, waiting for their
+	 * loopback frame to come out the other end.
+	 */
+	private final Map<Integer, Message> loopbackPending = Maps.newConcurrentMap();
+	private final AtomicInteger nextLoopbackId = new AtomicInteger();
+	
+	private final Map<String, StreamHandler> streamHandlers = Maps.newHashMap();
+	private final List<ConnectionState> serverStreaming = Lists.newArrayList();
+	private final List<ConnectionState> clientStreaming = Lists.newArrayList();
+	private int streamBudget = 32768;
+	private int lowPriorityBudget = 32768;
+	
+	/**
+	 * Rate limiters with a coalesced Message waiting, polled every server
+	 * tick.
+	 */
+	private final Queue<RateLimiter> coalescing = Queues.newConcurrentLinkedQueue();
+	
+	private ExecutorService workers;
+	private int laneCapacity;
+	
+	private volatile TrafficRecorder recorder;
+	
+	private final Subscriptions subscriptions = new Subscriptions();
+	private double subscriptionRange = 64;
+	
+	private double controlFrameRate = 256;
+	private int controlFrameBurst = 512;
+	private int openStreamLimit = 16;
 	
 	private NetworkContext(String channel) {
 		this.channel = channel;
+		this.stateKey = AttributeKey.valueOf("concrete:" + channel);
 		NetworkRegistry.INSTANCE.newEventDrivenChannel(channel).register(this);
+		MinecraftForge.EVENT_BUS.register(this);
 	}
 	
 	public NetworkContext register(Class<? extends Message> clazz) {
-		if (packetIds.containsKey(clazz)) {
+		if (types.containsKey(clazz)) {
 			ConcreteLog.warn("{} was registered twice", clazz);
 			return this;
 		}
-		packetIds.put(clazz, nextPacketId++);
-		List<WireField<?>> fields = Lists.newArrayList();
-		Class<?> cursor = clazz;
-		while (cursor != null && cursor != Object.class) {
-			for (Field f : cursor.getDeclaredFields()) {
-				if (!Modifier.isTransient(f.getModifiers()) && !Modifier.isStatic(f.getModifiers())) {
-					if (f.getType() == Boolean.TYPE) {
-						booleanCount.add(clazz);
-					}
-					if (f.getAnnotation(Optional.class) != null) {
-						optionalCount.add(clazz);
-					}
-					WireField<?> wf = new WireField<>(f);
-					fields.add(wf);
-				}
-			}
-			cursor = cursor.getSuperclass();
+		if (nextPacketId >= MAX_MESSAGES) {
+			throw new BadMessageException("Cannot register " + clazz + ", channel " + channel + " already has " + nextPacketId + " messages");
+		}
+		List<WireField<?>> fields = WireField.forClass(clazz);
+		MessageCodec codec = null;
+		DeltaCodec delta = null;
+		Delta d = clazz.getDeclaredAnnotation(Delta.class);
+		if (d != null) {
+			delta = new DeltaCodec(clazz, fields, d.capacity());
+		} else if (generateCodecs) {
+			codec = CodecGenerator.generate(clazz, fields);
+		}
+		if (codec == null) {
+			codec = new ReflectiveCodec(fields);
+		}
+		MessageType type = new MessageType(clazz, nextPacketId++, MessageFactory.create(clazz), fields, codec, delta, clazz.isAnnotationPresent(Compressed.class));
+		types.put(clazz, type);
+		typesById.add(type);
+		typesByName.put(clazz.getName(), type);
+		fingerprint = 0;
+		return this;
+	}
+	
+	/**
+	 * Generate a dedicated codec class for every Message registered after this
+	 * call, which reads and writes fields directly instead of through
+	 * reflection. Messages that aren't public, or that have wire fields which
+	 * aren't public or are final, silently keep using reflection, as do
+	 * {@link Delta} Messages.
+	 */
+	public NetworkContext enableCodecGeneration() {
+		generateCodecs = true;
+		return this;
+	}
+	
+	/**
+	 * Don't encode Messages sent over a local connection, such as the host's
+	 * own connection to the integrated server. Instead, a copy of the Message
+	 * is handed to the other side, and only a tiny frame naming it goes over
+	 * the connection, so it keeps its place relative to other packets and is
+	 * handled on the same threads as usual.
+	 */
+	public NetworkContext enableLoopback() {
+		loopback = true;
+		return this;
+	}
+	
+	/**
+	 * Record every payload this context sends and receives from now on, or
+	 * stop recording if null. Loopback frames aren't recorded, as they can't
+	 * be replayed.
+	 */
+	public NetworkContext setRecorder(@Nullable TrafficRecorder recorder) {
+		this.recorder = recorder;
+		return this;
+	}
+	
+	/**
+	 * Set how many batch, compressed, stream and subscription frames each
+	 * player may send per second, on average, and at once after a quiet
+	 * period. Players that send more are disconnected. Defaults to 256 per
+	 * second, with bursts of 512.
+	 */
+	public NetworkContext setControlFrameLimit(double perSecond, int burst) {
+		if (perSecond <= 0 || burst <= 0) throw new IllegalArgumentException("Control frame limit must be positive");
+		controlFrameRate = perSecond;
+		controlFrameBurst = burst;
+		return this;
+	}
+	
+	/**
+	 * Set how many streams each connection may be sending to this side at
+	 * once. Players that start more are disconnected. Defaults to 16.
+	 */
+	public NetworkContext setOpenStreamLimit(int streams) {
+		if (streams <= 0) throw new IllegalArgumentException("Open stream limit must be positive");
+		openStreamLimit = streams;
+		return this;
+	}
+	
+	/**
+	 * Set how far, in blocks, players may be from a position and still be
+	 * subscribed to topics there. Defaults to 64.
+	 */
+	public NetworkContext setSubscriptionRange(double blocks) {
+		subscriptionRange = blocks;
+		return this;
+	}
+	
+	/**
+	 * For use on the client thread. Ask the server to send this player
+	 * Messages sent with {@link Message#sendToSubscribers(TileEntity, String)}
+	 * for the given topic at the given position, such as while a GUI for it
+	 * is open. The subscription lasts until {@link #unsubscribe}, or until
+	 * the player disconnects, changes dimension, or moves out of range.
+	 */
+	@SideOnly(Side.CLIENT)
+	public void subscribe(BlockPos pos, String topic) {
+		sendSubscription(true, pos, topic);
+	}
+	
+	/**
+	 * For use on the client thread. Stop being sent Messages for the given
+	 * topic at the given position.
+	 */
+	@SideOnly(Side.CLIENT)
+	public void unsubscribe(BlockPos pos, String topic) {
+		sendSubscription(false, pos, topic);
+	}
+	
+	/**
+	 * Sent as {@code [0xF9][bool subscribe][long pos][topic]}.
+	 */
+	@SideOnly(Side.CLIENT)
+	private void sendSubscription(boolean subscribe, BlockPos pos, String topic) {
+		if (topic.length() > MAX_TOPIC_LENGTH) throw new IllegalArgumentException("Topic too long, must be at most " + MAX_TOPIC_LENGTH + " characters");
+		NetHandlerPlayClient conn = Minecraft.getMinecraft().getConnection();
+		if (conn == null) return;
+		ConnectionState state = getState(conn.getNetworkManager());
+		ByteBuf frame = Unpooled.buffer(10 + topic.length());
+		frame.writeByte(SUBSCRIBE_ID);
+		frame.writeBoolean(subscribe);
+		frame.writeLong(pos.toLong());
+		ByteBufUtils.writeUTF8String(frame, topic);
+		Payload payload = new Payload(channel, frame);
+		record(TrafficRecorder.SENT, Side.CLIENT, state, payload.data);
+		state.manager.sendPacket(payload.toServerboundPacket());
+	}
+	
+	List<EntityPlayerMP> getSubscribers(WorldServer world, BlockPos pos, String topic) {
+		return subscriptions.getSubscribers(world.getMinecraftServer().getPlayerList(), world.provider.getDimension(), pos, topic, subscriptionRange);
+	}
+	
+	/**
+	 * Hold Messages sent from the server thread until the end of the tick,
+	 * and then send everything queued for each player as a single framed
+	 * packet, rather than one packet per Message. Messages whose encoding
+	 * depends on the connection are held whichever thread sends them, so
+	 * they can't overtake ones encoded before them.
+	 */
+	public NetworkContext enableBatching() {
+		batching = true;
+		return this;
+	}
+	
+	/**
+	 * Set how many bytes of {@link Priority.Level#LOW LOW} priority Messages
+	 * may be sent to each player per tick. At least one is always sent.
+	 * Defaults to 32KiB.
+	 */
+	public NetworkContext setLowPriorityBudget(int bytesPerTick) {
+		lowPriorityBudget = bytesPerTick;
+		return this;
+	}
+	
+	
+	/**
+	 * Deflate every Message, or batch of Messages, that encodes to at least
+	 * the given amount of bytes. Messages marked {@link Compressed} are
+	 * deflated regardless. Pass -1 to turn this off, which is the default.
+	 */
+	public NetworkContext setCompressionThreshold(int bytes) {
+		compressionThreshold = bytes;
+		return this;
+	}
+	
+	
+	/**
+	 * Create a pool of the given amount of threads to handle
+	 * {@link Offloaded} Messages on. Each connection gets its own lane in the
+	 * pool, where its Messages are handled in order; Messages beyond the
+	 * given amount waiting in one lane are dropped.
+	 */
+	public NetworkContext enableWorkerPool(int threads, int queueCapacity) {
+		if (workers != null) throw new IllegalStateException("Worker pool already enabled for channel " + channel);
+		AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "Concrete worker for " + channel + " #" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		laneCapacity = queueCapacity;
+		return this;
+	}
+	
+	/**
+	 * Limit how many bytes of streams are sent to or from each connection per
+	 * tick. Defaults to 32KiB.
+	 */
+	public NetworkContext setStreamBudget(int bytesPerTick) {
+		if (bytesPerTick <= 0) throw new IllegalArgumentException("Stream budget must be positive");
+		streamBudget = bytesPerTick;
+		return this;
+	}
+	
+	/**
+	 * Handle incoming streams with the given name with the given handler.
+	 */
+	public NetworkContext registerStreamHandler(String name, StreamHandler handler) {
+		if (streamHandlers.containsKey(name)) {
+			ConcreteLog.warn("Stream handler {} was registered twice", name);
 		}
-		marshallers.put(clazz, fields);
+		streamHandlers.put(name, handler);
 		return this;
 	}
 	
+	/**
+	 * For use on the server thread. Stream the readable bytes of the given
+	 * buffer to the given player, a few chunks per tick, to be picked up by
+	 * the stream handler of the same name on their side. The stream takes
+	 * ownership of the buffer, and releases it once sent.
+	 */
+	public void sendStream(EntityPlayerMP player, String name, ByteBuf data) {
+		ConnectionState state = getState(player.connection.getNetworkManager());
+		queueStream(state, name, data, true, serverStreaming);
+	}
+	
+	/**
+	 * For use on the client thread. Stream the readable bytes of the given
+	 * buffer to the server, a few chunks per tick, to be picked up by the
+	 * stream handler of the same name there. The stream takes ownership of
+	 * the buffer, and releases it once sent.
+	 */
+	@SideOnly(Side.CLIENT)
+	public void sendStreamToServer(String name, ByteBuf data) {
+		NetHandlerPlayClient conn = Minecraft.getMinecraft().getConnection();
+		if (conn == null) throw new IllegalStateException("Cannot send a stream while not connected");
+		queueStream(getState(conn.getNetworkManager()), name, data, false, clientStreaming);
+	}
+	
+	private void queueStream(ConnectionState state, String name, ByteBuf data, boolean clientbound, List<ConnectionState> streaming) {
+		state.outgoingStreams.add(new OutgoingStream(state.nextStreamId++, name, data, clientbound));
+		if (!state.streaming) {
+			state.streaming = true;
+			streaming.add(state);
+		}
+	}
+	
+	
+	/**
+	 * @return traffic counters for every registered Message class, in
+	 * 		registration order
+	 */
+	public List<MessageStats> getStats() {
+		List<MessageStats> li = Lists.newArrayListWithCapacity(typesById.size());
+		for (MessageType type : typesById) {
+			li.add(type.stats);
+		}
+		return li;
+	}
+	
+	/**
+	 * @return traffic counters for the given Message class, or null if it
+	 * 		isn't registered
+	 */
+	@Nullable
+	public MessageStats getStats(Class<? extends Message> clazz) {
+		MessageType type = types.get(clazz);
+		return type == null ? null : type.stats;
+	}
+	
+	/**
+	 * Register a server command that prints the Message classes of this
+	 * context that use the most bandwidth or time, resets the counters, or
+	 * dumps them all to a CSV file.
+	 */
+	public void registerStatsCommand(FMLServerStartingEvent e, String commandStr) {
+		e.registerServerCommand(new NetworkStatsCommand(this, commandStr));
+	}
+	
+	void recordHandled(Message m, long nanos) {
+		MessageType type = types.get(m.getClass());
+		if (type != null) {
+			type.stats.recordHandled(nanos);
+		}
+	}
+	
 	
 	public String getChannel() {
 		return channel;
@@ -119,114 +477,961 @@ public final class NetworkContext {
 	
 	
 	
-	protected FMLProxyPacket getPacketFrom(Message m) {
-		if (!packetIds.containsKey(m.getClass())) throw new BadMessageException(m.getClass() + " is not registered");
-		PacketBuffer payload = new PacketBuffer(Unpooled.buffer());
-		payload.writeByte(packetIds.get(m.getClass()));
-		int bools = booleanCount.count(m.getClass()) + optionalCount.count(m.getClass());
-		if (bools > 0) {
-			List<Boolean> li = Lists.newArrayListWithCapacity(bools);
-			for (WireField<?> wf : marshallers.get(m.getClass())) {
-				if (wf.getType() == Boolean.TYPE) {
-					li.add((Boolean) wf.get(m));
-				} else if (wf.isOptional()) {
-					li.add(wf.get(m) != null);
+	/**
+	 * Take an idle instance of the given {@link Recyclable} Message class
+	 * from its pool, or make a new one if there are none. The Message should
+	 * be given back with {@link Message#recycle()} once it's been sent.
+	 */
+	public <T extends Message> T obtain(Class<T> clazz) {
+		MessageType type = types.get(clazz);
+		if (type == null) throw new BadMessageException(clazz + " is not registered");
+		return clazz.cast(newMessage(type));
+	}
+	
+	void recycle(Message m) {
+		MessageType type = types.get(m.getClass());
+		if (type != null && type.pool != null) {
+			type.pool.recycle(m);
+		}
+	}
+	
+	Outbound prepare(Message m) {
+		MessageType type = types.get(m.getClass());
+		if (type == null) throw new BadMessageException(m.getClass() + " is not registered");
+		return new Outbound(this, type, m);
+	}
+	
+	/**
+	 * @param state the connection this is being encoded for, or null if it
+	 * 		may be sent anywhere
+	 */
+	Payload encode(MessageType type, Message m, @Nullable ConnectionState state) {
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer(type.getSizeEstimate());
+		try {
+			if (type.id < FIRST_RESERVED_ID) {
+				scratch.writeByte(type.id);
+			} else {
+				scratch.writeByte(EXTENDED_ID);
+				ByteBufUtils.writeVarInt(scratch, type.id - FIRST_RESERVED_ID, 3);
+			}
+			long start = MessageStats.shouldSample() ? System.nanoTime() : 0;
+			ConnectionState prev = ConnectionDictionary.enter(state);
+			try {
+				if (type.delta != null) {
+					type.delta.encode(m, scratch, state == null ? null : getSentHistory(state, type));
+				} else {
+					type.codec.encode(m, scratch);
+				}
+			} finally {
+				ConnectionDictionary.exit(prev);
+			}
+			if (start != 0) {
+				type.stats.recordEncodeSample(System.nanoTime() - start);
+			}
+			type.recordSize(scratch.readableBytes());
+			return toPayload(scratch, type.compressed);
+		} finally {
+			scratch.release();
+		}
+	}
+	
+	/**
+	 * Encodes a Message so that it can be read without both sides agreeing
+	 * on packet ids or field layout, as {@code [0xFA][class name][varint count]}
+	 * followed by {@code [field name][int descriptor hash][varint length + 1][value]}
+	 * for each field, with a length of 0 for null. Interned fields are
+	 * written literally and Delta types in full, so it doesn't depend on the
+	 * connection either.
+	 */
+	Payload encodeSelfDescribed(MessageType type, Message m) {
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer(type.getSizeEstimate() * 2);
+		ByteBuf value = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		ConnectionState prev = ConnectionDictionary.enter(null);
+		try {
+			scratch.writeByte(SELF_DESCRIBED_ID);
+			ByteBufUtils.writeUTF8String(scratch, type.clazz.getName());
+			ByteBufUtils.writeVarInt(scratch, type.fields.size(), 5);
+			for (WireField<?> wf : type.fields) {
+				ByteBufUtils.writeUTF8String(scratch, wf.getField().getName());
+				scratch.writeInt(wf.getDescriptor().hashCode());
+				value.clear();
+				if (wf.marshalAlone(m, value)) {
+					ByteBufUtils.writeVarInt(scratch, value.readableBytes() + 1, 5);
+					scratch.writeBytes(value);
+				} else {
+					scratch.writeByte(0);
+				}
+			}
+			return toPayload(scratch, type.compressed);
+		} finally {
+			ConnectionDictionary.exit(prev);
+			value.release();
+			scratch.release();
+		}
+	}
+	
+	/**
+	 * Fields the other side doesn't have, or encodes differently, are
+	 * skipped, and fields it didn't send are left at their defaults.
+	 */
+	private Message readSelfDescribed(Side side, MessageType type, ByteBuf payload) {
+		Message m = newMessage(type);
+		if (m.getSide() != side) {
+			m.recycle();
+			throw new WrongSideException("Cannot receive packet of type " + type.clazz + " on side " + side);
+		}
+		type.stats.recordReceived(payload.writerIndex());
+		int count = ByteBufUtils.readVarInt(payload, 5);
+		ConnectionState prev = ConnectionDictionary.enter(null);
+		try {
+			for (int i = 0; i < count; i++) {
+				String name = ByteBufUtils.readUTF8String(payload);
+				int descriptor = payload.readInt();
+				int len = ByteBufUtils.readVarInt(payload, 5) - 1;
+				if (len < 0) continue;
+				if (len > payload.readableBytes()) {
+					throw new BadMessageException("Field " + name + " of " + type.clazz + " is longer than the rest of the payload");
+				}
+				ByteBuf value = payload.readSlice(len);
+				WireField<?> wf = type.fieldsByName.get(name);
+				if (wf != null && wf.getDescriptor().hashCode() == descriptor) {
+					wf.unmarshalAlone(m, value);
+				}
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		return m;
+	}
+	
+	/**
+	 * @return a hash of the name and field layout of every Message
+	 * 		registered, in order, which both sides compare to tell whether
+	 * 		they can use each other's packet ids and codecs
+	 */
+	public long getFingerprint() {
+		long fp = fingerprint;
+		if (fp == 0) {
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			hasher.putString(channel, StandardCharsets.UTF_8);
+			for (MessageType type : typesById) {
+				hasher.putString(type.clazz.getName(), StandardCharsets.UTF_8);
+				hasher.putBoolean(type.delta != null);
+				hasher.putInt(type.fields.size());
+				for (WireField<?> wf : type.fields) {
+					hasher.putString(wf.getField().getName(), StandardCharsets.UTF_8);
+					hasher.putString(wf.getDescriptor(), StandardCharsets.UTF_8);
+				}
+			}
+			fp = hasher.hash().asLong();
+			if (fp == 0) fp = 1;
+			fingerprint = fp;
+		}
+		return fp;
+	}
+	
+	/**
+	 * Send this side's fingerprint as {@code [0xFB][long fingerprint]}, if
+	 * it hasn't been already.
+	 */
+	private void sendSchema(ConnectionState state, boolean clientbound) {
+		if (!state.schemaSent.compareAndSet(false, true)) return;
+		ByteBuf frame = Unpooled.buffer(9);
+		frame.writeByte(SCHEMA_ID);
+		frame.writeLong(getFingerprint());
+		Payload payload = new Payload(channel, frame);
+		if (clientbound) {
+			sendNow(state, payload);
+		} else {
+			record(TrafficRecorder.SENT, Side.CLIENT, state, payload.data);
+			state.manager.sendPacket(payload.toServerboundPacket());
+		}
+	}
+	
+	private SentHistory getSentHistory(ConnectionState state, MessageType type) {
+		SentHistory history = state.sentDeltas.get(type);
+		if (history == null) {
+			history = type.delta.newSentHistory();
+			SentHistory existing = state.sentDeltas.putIfAbsent(type, history);
+			if (existing != null) {
+				history = existing;
+			}
+		}
+		return history;
+	}
+	
+	private ReceivedHistory getReceivedHistory(ConnectionState state, MessageType type) {
+		ReceivedHistory history = state.receivedDeltas.get(type);
+		if (history == null) {
+			history = type.delta.newReceivedHistory();
+			state.receivedDeltas.put(type, history);
+		}
+		return history;
+	}
+	
+	/**
+	 * FMLProxyPacket needs an array-backed payload that outlives the pooled
+	 * buffers we encode into, so it gets an exact-size copy. If the data is
+	 * large enough, or compression is forced, that copy is a compressed frame
+	 * of {@code [0xFE][varint size][deflated data]} instead, as long as it
+	 * actually comes out smaller.
+	 */
+	private Payload toPayload(ByteBuf scratch, boolean forceCompression) {
+		int size = scratch.readableBytes();
+		if (forceCompression || (compressionThreshold >= 0 && size >= compressionThreshold)) {
+			ByteBuf frame = PooledByteBufAllocator.DEFAULT.heapBuffer((size / 2) + 8);
+			try {
+				frame.writeByte(COMPRESSED_ID);
+				ByteBufUtils.writeVarInt(frame, size, 5);
+				Compression.deflate(scratch, frame);
+				if (frame.readableBytes() < size) {
+					return copy(frame);
+				}
+			} finally {
+				frame.release();
+			}
+		}
+		return copy(scratch);
+	}
+	
+	boolean isLoopback(@Nullable ConnectionState state) {
+		return loopback && state != null && state.manager.isLocalChannel();
+	}
+	
+	/**
+	 * Makes a copy of the given Message for the other end of a local
+	 * connection, and a {@code [0xFC][varint handle]} frame for it to be
+	 * picked up with.
+	 */
+	Payload loopback(MessageType type, Message m) {
+		Message copy = newMessage(type);
+		ConnectionState prev = ConnectionDictionary.enter(null);
+		try {
+			for (WireField<?> wf : type.fields) {
+				wf.copy(m, copy);
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		int handle = nextLoopbackId.getAndIncrement();
+		loopbackPending.put(handle, copy);
+		ByteBuf frame = Unpooled.buffer(6);
+		frame.writeByte(LOOPBACK_ID);
+		ByteBufUtils.writeVarInt(frame, handle, 5);
+		return new Payload(channel, frame);
+	}
+	
+	private Payload copy(ByteBuf buf) {
+		byte[] bytes = new byte[buf.readableBytes()];
+		buf.getBytes(buf.readerIndex(), bytes);
+		return new Payload(channel, Unpooled.wrappedBuffer(bytes));
+	}
+	
+	void send(EntityPlayerMP player, Outbound out) {
+		send(getState(player.connection.getNetworkManager()), out, isServerThread());
+	}
+	
+	/**
+	 * Interned ids and delta bases are assigned as a Message is encoded, so
+	 * a Message that uses them must reach the other side after the ones
+	 * encoded before it. Those are encoded and queued or sent in one go,
+	 * and when batching, always queued.
+	 */
+	void send(ConnectionState state, Outbound out, boolean onServerThread) {
+		if (!state.schemaSent.get()) {
+			sendSchema(state, true);
+		}
+		MessageType type = out.getType();
+		if (type.isConnectionDependent()) {
+			synchronized (state.sendLock) {
+				Payload payload = out.payloadFor(state);
+				type.stats.recordSent(payload.size());
+				enqueue(state, payload, type.priority, onServerThread || batching);
+			}
+		} else {
+			Payload payload = out.payloadFor(state);
+			type.stats.recordSent(payload.size());
+			enqueue(state, payload, type.priority, onServerThread);
+		}
+	}
+	
+	/**
+	 * Send several Messages to each of the given players as one batch frame,
+	 * encoded once for all of them. Players that need them encoded specially,
+	 * and Messages that are encoded per connection or won't fit in one frame,
+	 * fall back to being sent one by one.
+	 */
+	void sendMany(EntityPlayerMP[] players, Message[] messages) {
+		Outbound[] outs = new Outbound[messages.length];
+		boolean shareable = true;
+		for (int i = 0; i < messages.length; i++) {
+			outs[i] = prepare(messages[i]);
+			shareable &= !outs[i].getType().isConnectionDependent();
+		}
+		Payload frame = null;
+		for (EntityPlayerMP player : players) {
+			ConnectionState state = getState(player.connection.getNetworkManager());
+			if (shareable && frame == null && state.schemaConfirmed && !isLoopback(state)) {
+				frame = frame(outs);
+				shareable = frame != null;
+			}
+			if (!shareable || !state.schemaConfirmed || isLoopback(state)) {
+				for (Outbound out : outs) {
+					send(player, out);
 				}
+				continue;
 			}
-			for (int i = 0; i < (bools + 7) / 8; i++) {
-				int by = 0;
-				for (int j = i * 8; j < Math.min(li.size(), i + 8); j++) {
-					if (li.get(j)) {
-						by |= (1 << j);
+			for (Outbound out : outs) {
+				out.getType().stats.recordSent(out.payloadFor(null).size());
+			}
+			enqueue(state, frame, Priority.Level.NORMAL, isServerThread());
+		}
+	}
+	
+	/**
+	 * @return the shared encodings of the given Messages in one
+	 * 		{@code [0xFF]} batch frame, or null if they don't fit in one. It's
+	 * 		never compressed, so it's still recognizable as a batch when
+	 * 		{@link #flushBatch} has to keep it out of another one.
+	 */
+	@Nullable
+	private Payload frame(Outbound[] outs) {
+		ByteBuf frame = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		try {
+			frame.writeByte(BATCH_ID);
+			for (Outbound out : outs) {
+				Payload payload = out.payloadFor(null);
+				if (frame.readableBytes() + payload.size() + 5 > MAX_BATCH_SIZE) return null;
+				ByteBufUtils.writeVarInt(frame, payload.size(), 5);
+				frame.writeBytes(payload.data, payload.data.readerIndex(), payload.size());
+			}
+			return copy(frame);
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * @param hold whether the payload may be held until the end of the
+	 * 		tick, which is only done when batching or for low priority
+	 */
+	private void enqueue(ConnectionState state, Payload payload, Priority.Level priority, boolean hold) {
+		if (hold && (batching || priority == Priority.Level.LOW)) {
+			synchronized (state.sendLock) {
+				if (priority == Priority.Level.HIGH) {
+					state.urgent.add(payload);
+				} else if (priority == Priority.Level.LOW) {
+					state.deferred.add(payload);
+				} else {
+					state.batch.add(payload);
+				}
+				if (!state.awaitingFlush) {
+					state.awaitingFlush = true;
+					awaitingFlush.add(state);
+				}
+			}
+		} else {
+			sendNow(state, payload);
+		}
+	}
+	
+	void sendToServer(NetworkManager manager, Message m) {
+		Outbound out = prepare(m);
+		ConnectionState state = getState(manager);
+		if (out.getType().isConnectionDependent()) {
+			synchronized (state.sendLock) {
+				sendToServer(state, out);
+			}
+		} else {
+			sendToServer(state, out);
+		}
+	}
+	
+	private void sendToServer(ConnectionState state, Outbound out) {
+		Payload payload = out.payloadFor(state);
+		out.getType().stats.recordSent(payload.size());
+		record(TrafficRecorder.SENT, Side.CLIENT, state, payload.data);
+		state.manager.sendPacket(payload.toServerboundPacket());
+	}
+	
+	ConnectionState getState(NetworkManager manager) {
+		Attribute<ConnectionState> attr = manager.channel().attr(stateKey);
+		ConnectionState state = attr.get();
+		if (state == null) {
+			state = new ConnectionState(manager);
+			ConnectionState existing = attr.setIfAbsent(state);
+			if (existing != null) {
+				state = existing;
+			} else {
+				ConnectionState created = state;
+				manager.channel().closeFuture().addListener(f -> {
+					abortStreams(created);
+					if (manager.isLocalChannel()) {
+						// there's only ever one local connection
+						loopbackPending.clear();
+					}
+				});
+			}
+		}
+		return state;
+	}
+	
+	/**
+	 * Send as much of each connection's streams as its budget allows, as
+	 * {@code [0xFD][0][varint id][name][long length]} to start a stream, and
+	 * {@code [0xFD][1][varint id][data]} for each chunk of it.
+	 */
+	private void pumpStreams(List<ConnectionState> streaming) {
+		Iterator<ConnectionState> iter = streaming.iterator();
+		while (iter.hasNext()) {
+			ConnectionState state = iter.next();
+			if (!state.manager.isChannelOpen()) {
+				for (OutgoingStream stream : state.outgoingStreams) {
+					stream.data.release();
+				}
+				state.outgoingStreams.clear();
+			}
+			int budget = streamBudget;
+			while (budget > 0 && !state.outgoingStreams.isEmpty()) {
+				OutgoingStream stream = state.outgoingStreams.peek();
+				ByteBuf frame = PooledByteBufAllocator.DEFAULT.heapBuffer(STREAM_CHUNK_SIZE + 8);
+				try {
+					frame.writeByte(STREAM_ID);
+					if (!stream.started) {
+						frame.writeByte(STREAM_START);
+						ByteBufUtils.writeVarInt(frame, stream.id, 5);
+						ByteBufUtils.writeUTF8String(frame, stream.name);
+						frame.writeLong(stream.data.readableBytes());
+						stream.started = true;
+					} else {
+						frame.writeByte(STREAM_DATA);
+						ByteBufUtils.writeVarInt(frame, stream.id, 5);
+						int len = Math.min(Math.min(STREAM_CHUNK_SIZE, budget), stream.data.readableBytes());
+						frame.writeBytes(stream.data, len);
 					}
+					budget -= frame.readableBytes();
+					Payload payload = copy(frame);
+					if (stream.clientbound) {
+						sendNow(state, payload);
+					} else {
+						record(TrafficRecorder.SENT, Side.CLIENT, state, payload.data);
+						state.manager.sendPacket(payload.toServerboundPacket());
+					}
+				} finally {
+					frame.release();
+				}
+				if (!stream.data.isReadable()) {
+					state.outgoingStreams.poll();
+					stream.data.release();
+				}
+			}
+			if (state.outgoingStreams.isEmpty()) {
+				state.streaming = false;
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Runs on the netty thread once the connection is closed, so it can't
+	 * race with incoming chunks.
+	 */
+	private void abortStreams(ConnectionState state) {
+		for (IncomingStream stream : state.incomingStreams.values()) {
+			stream.abort();
+		}
+		state.incomingStreams.clear();
+	}
+	
+	private static boolean isServerThread() {
+		MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+		return server != null && server.isCallingFromMinecraftThread();
+	}
+	
+	
+	/**
+	 * Start the schema handshake as soon as possible, so that the
+	 * self-describing encoding is used as little as possible.
+	 */
+	@SubscribeEvent
+	public void onPlayerLoggedIn(PlayerLoggedInEvent e) {
+		if (e.player instanceof EntityPlayerMP) {
+			sendSchema(getState(((EntityPlayerMP) e.player).connection.getNetworkManager()), true);
+		}
+	}
+	
+	@SubscribeEvent
+	public void onPlayerLoggedOut(PlayerLoggedOutEvent e) {
+		subscriptions.unsubscribeAll(e.player.getUniqueID());
+	}
+	
+	@SubscribeEvent(priority = EventPriority.LOWEST)
+	public void onServerTick(ServerTickEvent e) {
+		if (e.phase != Phase.END) return;
+		if (!coalescing.isEmpty()) {
+			pollCoalescing();
+		}
+		if (!serverStreaming.isEmpty()) {
+			pumpStreams(serverStreaming);
+		}
+		if (awaitingFlush.isEmpty()) return;
+		Iterator<ConnectionState> iter = awaitingFlush.iterator();
+		while (iter.hasNext()) {
+			ConnectionState state = iter.next();
+			synchronized (state.sendLock) {
+				if (state.manager.isChannelOpen()) {
+					flush(state);
+				} else {
+					state.deferred.clear();
+				}
+				state.urgent.clear();
+				state.batch.clear();
+				if (state.deferred.isEmpty()) {
+					state.awaitingFlush = false;
+					iter.remove();
 				}
-				payload.writeByte(by);
 			}
 		}
-		marshallers.get(m.getClass()).stream()
-		                             .filter((it) -> it.getType() != Boolean.TYPE)
-		                             .forEach((it) -> it.marshal(m, payload));
-		return new FMLProxyPacket(payload, channel);
+	}
+	
+	@SubscribeEvent(priority = EventPriority.LOWEST)
+	public void onClientTick(ClientTickEvent e) {
+		if (e.phase == Phase.END && !clientStreaming.isEmpty()) {
+			pumpStreams(clientStreaming);
+		}
+	}
+	
+	/**
+	 * Send high priority payloads, then normal ones, then as many low
+	 * priority ones as the budget allows, leaving the rest queued.
+	 */
+	private void flush(ConnectionState state) {
+		List<Payload> payloads = state.urgent;
+		payloads.addAll(state.batch);
+		int budget = lowPriorityBudget;
+		while (budget > 0 && !state.deferred.isEmpty()) {
+			Payload payload = state.deferred.poll();
+			budget -= payload.size();
+			payloads.add(payload);
+		}
+		if (batching) {
+			flushBatch(state, payloads);
+		} else {
+			for (Payload payload : payloads) {
+				sendNow(state, payload);
+			}
+		}
+	}
+	
+	/**
+	 * Send the given payloads in as few batch frames as possible. Frames
+	 * only nest one level deep: payloads that are batches themselves are sent
+	 * on their own, and a batch holding compressed payloads isn't compressed
+	 * again.
+	 */
+	private void flushBatch(ConnectionState state, List<Payload> payloads) {
+		if (payloads.isEmpty()) return;
+		if (payloads.size() == 1) {
+			sendNow(state, payloads.get(0));
+			return;
+		}
+		ByteBuf frame = null;
+		boolean holdsCompressed = false;
+		try {
+			for (Payload payload : payloads) {
+				int size = payload.size();
+				int kind = payload.data.getUnsignedByte(payload.data.readerIndex());
+				boolean alone = kind == BATCH_ID || size + 6 > MAX_BATCH_SIZE;
+				if (frame != null && (alone || frame.readableBytes() + size + 5 > MAX_BATCH_SIZE)) {
+					sendNow(state, holdsCompressed ? copy(frame) : toPayload(frame, false));
+					frame.release();
+					frame = null;
+				}
+				if (alone) {
+					sendNow(state, payload);
+					continue;
+				}
+				if (frame == null) {
+					frame = PooledByteBufAllocator.DEFAULT.heapBuffer(MAX_BATCH_SIZE);
+					frame.writeByte(BATCH_ID);
+					holdsCompressed = false;
+				}
+				holdsCompressed |= kind == COMPRESSED_ID;
+				ByteBufUtils.writeVarInt(frame, size, 5);
+				frame.writeBytes(payload.data, payload.data.readerIndex(), size);
+			}
+			if (frame != null) {
+				sendNow(state, holdsCompressed ? copy(frame) : toPayload(frame, false));
+			}
+		} finally {
+			if (frame != null) {
+				frame.release();
+			}
+		}
+	}
+	
+	private void sendNow(ConnectionState state, Payload payload) {
+		record(TrafficRecorder.SENT, Side.SERVER, state, payload.data);
+		for (Packet<INetHandlerPlayClient> packet : payload.toClientboundPackets()) {
+			state.manager.sendPacket(packet);
+		}
 	}
 
 
 	@SubscribeEvent
 	public void onServerCustomPacket(ServerCustomPacketEvent e) {
 		ByteBuf payload = e.getPacket().payload();
-		Message m = readPacket(e.side(), payload);
-		m.doHandleServer(((NetHandlerPlayServer) e.getHandler()).player);
+		ConnectionState state = getState(e.getManager());
+		record(TrafficRecorder.RECEIVED, Side.SERVER, state, payload);
+		receive(e.side(), payload, state, ((NetHandlerPlayServer) e.getHandler()).player);
 	}
 	
 	@SubscribeEvent
 	@SideOnly(Side.CLIENT)
 	public void onClientCustomPacket(ClientCustomPacketEvent e) {
 		ByteBuf payload = e.getPacket().payload();
-		Message m = readPacket(e.side(), payload);
-		m.doHandleClient();
+		ConnectionState state = getState(e.getManager());
+		record(TrafficRecorder.RECEIVED, Side.CLIENT, state, payload);
+		receive(e.side(), payload, state, null);
 	}
 	
+	private void record(int kind, Side side, ConnectionState state, ByteBuf data) {
+		TrafficRecorder recorder = this.recorder;
+		if (recorder != null && !isLoopback(state)) {
+			recorder.record(kind, side, state, channel, data);
+		}
+	}
 	
-	private Message readPacket(Side side, ByteBuf payload) {
+	/**
+	 * @param sender the player that sent this payload, or null on the client
+	 */
+	void receive(Side side, ByteBuf payload, ConnectionState state, @Nullable EntityPlayer sender) {
+		receive(side, payload, state, sender, false, false);
+	}
+	
+	/**
+	 * @param inBatch whether this payload came out of a batch frame, which
+	 * 		mustn't contain another
+	 * @param inCompressed whether this payload came out of a compressed
+	 * 		frame, which mustn't contain another
+	 */
+	private void receive(Side side, ByteBuf payload, ConnectionState state, @Nullable EntityPlayer sender, boolean inBatch, boolean inCompressed) {
+		if (state.kicking) return;
 		int id = payload.readUnsignedByte();
-		if (!packetIds.containsValue(id)) {
-			throw new IllegalArgumentException("Unknown packet id " + id);
+		if (isControlFrame(id) && !acquireControlFrame(side, state, sender)) return;
+		if (id == BATCH_ID) {
+			if (inBatch) throw new BadMessageException("Received a batch frame inside another");
+			while (payload.isReadable()) {
+				int size = ByteBufUtils.readVarInt(payload, 5);
+				receive(side, payload.readSlice(size), state, sender, true, inCompressed);
+			}
+			return;
 		}
-		Class<? extends Message> clazz = packetIds.inverse().get(id);
-		Message m;
-		try {
-			m = instantiateMessage(clazz);
-		} catch (Throwable t) {
-			throw new BadMessageException("Cannot instanciate message class " + clazz, t);
+		if (id == COMPRESSED_ID) {
+			if (inCompressed) throw new BadMessageException("Received a compressed frame inside another");
+			int size = ByteBufUtils.readVarInt(payload, 5);
+			ByteBuf inflated = Compression.inflate(payload, size);
+			try {
+				receive(side, inflated, state, sender, inBatch, true);
+			} finally {
+				inflated.release();
+			}
+			return;
 		}
-		if (m.getSide() != side) {
-			throw new WrongSideException("Cannot receive packet of type " + clazz + " on side " + side);
-		}
-		Set<WireField<?>> present = Sets.newHashSetWithExpectedSize(marshallers.get(m.getClass()).size());
-		int bools = booleanCount.count(m.getClass()) + optionalCount.count(m.getClass());
-		if (bools > 0) {
-			List<Consumer<Boolean>> li = Lists.newArrayListWithCapacity(bools);
-			for (WireField<?> wf : marshallers.get(m.getClass())) {
-				if (wf.getType() == Boolean.TYPE) {
-					li.add((b) -> ((WireField<Boolean>) wf).set(m, b));
-					present.add(wf);
-				} else if (wf.isOptional()) {
-					li.add((b) -> { if (b) { present.add(wf); } });
-				} else {
-					present.add(wf);
-				}
+		if (id == STREAM_ID) {
+			receiveStream(payload, state, sender);
+			return;
+		}
+		if (id == LOOPBACK_ID) {
+			if (state.manager == null || !state.manager.isLocalChannel()) {
+				throw new BadMessageException("Received a loopback frame over a remote connection");
+			}
+			int handle = ByteBufUtils.readVarInt(payload, 5);
+			Message m = loopbackPending.remove(handle);
+			if (m == null) {
+				throw new BadMessageException("Received unknown loopback Message " + handle);
+			}
+			if (m.getSide() != side) {
+				throw new WrongSideException("Cannot receive packet of type " + m.getClass() + " on side " + side);
+			}
+			types.get(m.getClass()).stats.recordReceived(payload.writerIndex());
+			dispatch(side, m, state, sender);
+			return;
+		}
+		if (id == SCHEMA_ID) {
+			boolean match = payload.readLong() == getFingerprint();
+			if (!match) {
+				ConcreteLog.warn("Channel {} has different Messages registered on each side, falling back to the self-describing encoding", channel);
+			}
+			state.schemaConfirmed = match;
+			if (state.manager != null) {
+				sendSchema(state, side.isServer());
+			}
+			return;
+		}
+		if (id == SUBSCRIBE_ID) {
+			if (!side.isServer()) throw new BadMessageException("Received a subscription on the client");
+			if (sender == null) throw new BadMessageException("Received a subscription with no sender");
+			receiveSubscription(payload, (EntityPlayerMP) sender);
+			return;
+		}
+		MessageType type;
+		if (id == SELF_DESCRIBED_ID) {
+			String name = ByteBufUtils.readUTF8String(payload);
+			type = typesByName.get(name);
+			if (type == null) {
+				ConcreteLog.warn("Ignoring unknown Message {} on channel {}", name, channel);
+				return;
+			}
+		} else {
+			if (id == EXTENDED_ID) {
+				id = FIRST_RESERVED_ID + ByteBufUtils.readVarInt(payload, 3);
 			}
-			for (int i = 0; i < (bools + 7) / 8; i++) {
-				int by = payload.readUnsignedByte();
-				for (int j = i * 8; j < Math.min(li.size(), i + 8); j++) {
-					boolean val = (by & (1 << (j - i))) != 0;
-					li.get(j).accept(val);
+			if (id >= typesById.size()) {
+				throw new IllegalArgumentException("Unknown packet id " + id);
+			}
+			type = typesById.get(id);
+		}
+		RateLimiter limiter = null;
+		// replayed traffic has no real connection to drop or throttle
+		if (side.isServer() && state.manager != null) {
+			limiter = getLimiter(state, type, sender);
+			if (limiter != null && limiter.overflow != Overflow.COALESCE && !limiter.tryAcquire()) {
+				if (limiter.overflow == Overflow.DISCONNECT) {
+					disconnect(state, sender, "too many " + limiter.type.clazz.getName());
+					return;
+				}
+				limiter.type.stats.recordDropped();
+				if (id != SELF_DESCRIBED_ID && type.isConnectionDependent()) {
+					// still has to be read, or our dictionaries and delta
+					// history for this connection fall out of step with the
+					// sender's
+					readPacket(side, id, payload, state).recycle();
 				}
+				return;
+			}
+		}
+		Message m = id == SELF_DESCRIBED_ID ? readSelfDescribed(side, type, payload) : readPacket(side, id, payload, state);
+		if (limiter != null && limiter.overflow == Overflow.COALESCE) {
+			RateLimiter.Offer offer = limiter.offer(m);
+			if (offer == RateLimiter.Offer.WAITING) {
+				coalescing.add(limiter);
+			}
+			if (offer != RateLimiter.Offer.HANDLE_NOW) return;
+		}
+		dispatch(side, m, state, sender);
+	}
+	
+	private void dispatch(Side side, Message m, ConnectionState state, @Nullable EntityPlayer sender) {
+		MessageType type = types.get(m.getClass());
+		if (workers != null && type.offloaded) {
+			try {
+				m.doHandleOn(state.getLane(workers, laneCapacity), sender);
+			} catch (RejectedExecutionException e) {
+				m.recycle();
+				type.stats.recordDropped();
+				ConcreteLog.warn("Dropping {} on channel {}, too many are waiting to be handled", m.getClass().getName(), channel);
 			}
+		} else if (side.isServer()) {
+			m.doHandleServer(sender);
 		} else {
-			present.addAll(marshallers.get(m.getClass()));
+			m.doHandleClient();
 		}
-		marshallers.get(m.getClass()).stream()
-		                             .filter((it) -> it.getType() != Boolean.TYPE && present.contains(it))
-		                             .forEach((it) -> it.unmarshal(m, payload));
-		return m;
 	}
 	
-	private Message instantiateMessage(Class<? extends Message> clazz) throws Throwable {
-		Instanciator<? extends Message> instanciator = instanciators.get(clazz);
-		if (instanciator == null) {
-			Constructor<? extends Message> cons;
+	
+	private static boolean isControlFrame(int id) {
+		return id == BATCH_ID || id == COMPRESSED_ID || id == STREAM_ID || id == SCHEMA_ID || id == SUBSCRIBE_ID;
+	}
+	
+	/**
+	 * Frames other than Messages aren't covered by any {@link RateLimited}
+	 * limit, so they have a budget of their own for each player.
+	 * 
+	 * @return false if the sender went over it, and is being disconnected
+	 */
+	private boolean acquireControlFrame(Side side, ConnectionState state, @Nullable EntityPlayer sender) {
+		// replayed traffic has no real connection to drop
+		if (!side.isServer() || state.manager == null || sender == null) return true;
+		if (state.controlFrames == null) {
+			state.controlFrames = new TokenBucket(controlFrameRate, controlFrameBurst);
+		}
+		if (state.controlFrames.tryAcquire()) return true;
+		disconnect(state, sender, "too many control frames");
+		return false;
+	}
+	
+	@Nullable
+	private RateLimiter getLimiter(ConnectionState state, MessageType type, EntityPlayer sender) {
+		if (type.rateLimit == null) return null;
+		RateLimiter limiter = state.limiters.get(type);
+		if (limiter == null) {
+			limiter = new RateLimiter(type, type.rateLimit, state, sender);
+			state.limiters.put(type, limiter);
+		}
+		return limiter;
+	}
+	
+	private void disconnect(ConnectionState state, EntityPlayer sender, String what) {
+		if (state.kicking) return;
+		state.kicking = true;
+		ConcreteLog.warn("Disconnecting {} for sending {}", sender.getName(), what);
+		EntityPlayerMP player = (EntityPlayerMP) sender;
+		// disconnect waits on the main thread, which we must not do from netty
+		player.getServer().addScheduledTask(() -> player.connection.disconnect(new TextComponentString("Sent too many packets")));
+	}
+	
+	/**
+	 * Handle the coalesced Messages whose rate limit now allows it.
+	 */
+	private void pollCoalescing() {
+		for (int i = coalescing.size(); i > 0; i--) {
+			RateLimiter limiter = coalescing.poll();
+			if (limiter == null) break;
+			if (limiter.state.kicking || !limiter.state.manager.isChannelOpen()) {
+				limiter.discardPending();
+				continue;
+			}
+			Message m = limiter.takeIfReady();
+			if (m != null) {
+				dispatch(Side.SERVER, m, limiter.state, limiter.sender);
+			} else {
+				coalescing.add(limiter);
+			}
+		}
+	}
+	
+	private void receiveSubscription(ByteBuf payload, EntityPlayerMP sender) {
+		boolean subscribe = payload.readBoolean();
+		BlockPos pos = BlockPos.fromLong(payload.readLong());
+		String topic = ByteBufUtils.readUTF8String(payload);
+		if (topic.length() > MAX_TOPIC_LENGTH) throw new BadMessageException("Subscription topic is too long");
+		if (!subscribe) {
+			subscriptions.unsubscribe(sender.getUniqueID(), sender.dimension, pos, topic);
+			return;
+		}
+		double rangeSq = subscriptionRange * subscriptionRange;
+		if (sender.getDistanceSq(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5) > rangeSq) {
+			// they may have moved since they asked; not worth a warning
+			return;
+		}
+		if (!subscriptions.subscribe(sender, pos, topic, MAX_SUBSCRIPTIONS)) {
+			ConcreteLog.warn("Ignoring subscription from {} to {} at {}, as they already have {}", sender.getName(), topic, pos, MAX_SUBSCRIPTIONS);
+		}
+	}
+	
+	private void receiveStream(ByteBuf payload, ConnectionState state, @Nullable EntityPlayer sender) {
+		int kind = payload.readUnsignedByte();
+		int id = ByteBufUtils.readVarInt(payload, 5);
+		IncomingStream stream;
+		if (kind == STREAM_START) {
+			IncomingStream existing = state.incomingStreams.remove(id);
+			if (existing != null) {
+				existing.abort();
+				throw new BadMessageException("Stream " + id + " was started again before it finished");
+			}
+			if (state.incomingStreams.size() >= openStreamLimit) {
+				// replayed traffic has no real connection to drop
+				if (sender != null && state.manager != null) {
+					disconnect(state, sender, "too many streams at once");
+					return;
+				}
+				throw new BadMessageException("More than " + openStreamLimit + " streams were started at once");
+			}
+			String name = ByteBufUtils.readUTF8String(payload);
+			long length = payload.readLong();
+			if (length < 0) throw new BadMessageException("Stream " + name + " has negative length " + length);
+			StreamHandler handler = streamHandlers.get(name);
+			stream = null;
+			if (handler == null) {
+				ConcreteLog.warn("Ignoring stream {} on channel {}, as it has no handler", name, channel);
+			} else {
+				stream = handler.accept(sender, length);
+			}
+			if (stream == null) {
+				stream = IncomingStream.discard();
+			}
+			stream.remaining = length;
+			state.incomingStreams.put(id, stream);
+		} else if (kind == STREAM_DATA) {
+			stream = state.incomingStreams.get(id);
+			if (stream == null) throw new BadMessageException("Data for unknown stream " + id);
+			int len = payload.readableBytes();
+			if (len > stream.remaining) {
+				state.incomingStreams.remove(id);
+				stream.abort();
+				throw new BadMessageException("Stream " + id + " is longer than it said it would be");
+			}
+			try {
+				stream.write(payload);
+			} catch (IOException e) {
+				state.incomingStreams.remove(id);
+				stream.abort();
+				throw new BadMessageException("Failed to write stream " + id, e);
+			}
+			stream.remaining -= len;
+		} else {
+			throw new BadMessageException("Unknown stream frame kind " + kind);
+		}
+		if (stream.remaining == 0) {
+			state.incomingStreams.remove(id);
+			Runnable callback;
 			try {
-				cons = clazz.getDeclaredConstructor(NetworkContext.class);
-			} catch (Throwable t) {
-				cons = clazz.getDeclaredConstructor();
+				callback = stream.finish();
+			} catch (IOException e) {
+				throw new BadMessageException("Failed to finish stream " + id, e);
+			}
+			if (callback == null) return;
+			if (sender != null) {
+				((WorldServer) sender.world).addScheduledTask(callback);
+			} else {
+				scheduleClient(callback);
+			}
+		}
+	}
+	
+	@SideOnly(Side.CLIENT)
+	private void scheduleClient(Runnable r) {
+		Minecraft.getMinecraft().addScheduledTask(r);
+	}
+	
+	private Message readPacket(Side side, int id, ByteBuf payload, ConnectionState state) {
+		if (id >= typesById.size()) {
+			throw new IllegalArgumentException("Unknown packet id " + id);
+		}
+		MessageType type = typesById.get(id);
+		Message m = newMessage(type);
+		if (m.getSide() != side) {
+			m.recycle();
+			throw new WrongSideException("Cannot receive packet of type " + type.clazz + " on side " + side);
+		}
+		type.stats.recordReceived(payload.readableBytes() + 1);
+		long start = MessageStats.shouldSample() ? System.nanoTime() : 0;
+		ConnectionState prev = ConnectionDictionary.enter(state);
+		try {
+			if (type.delta != null) {
+				type.delta.decode(m, payload, getReceivedHistory(state, type));
+			} else {
+				type.codec.decode(m, payload);
 			}
-			instanciator = Instanciators.from(cons);
-			instanciators.put(clazz, instanciator);
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		if (start != 0) {
+			type.stats.recordDecodeSample(System.nanoTime() - start);
+		}
+		return m;
+	}
+	
+	private Message newMessage(MessageType type) {
+		if (type.pool != null) {
+			Message m = type.pool.poll();
+			if (m != null) return m;
 		}
 		try {
-			return instanciator.newInstance(this);
+			return type.factory.apply(this);
 		} catch (Throwable t) {
-			return instanciator.newInstance();
+			throw new BadMessageException("Cannot instanciate message class " + type.clazz, t);
 		}
 	}
 	
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/**
+ * Prints the {@link MessageStats} of a NetworkContext. Registered with
+ * {@link NetworkContext#registerStatsCommand}.
+ */
+final class NetworkStatsCommand extends CommandBase {
+	private final NetworkContext ctx;
+	private final String name;
+	
+	public NetworkStatsCommand(NetworkContext ctx, String name) {
+		this.ctx = ctx;
+		this.name = name;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getUsage(ICommandSender sender) {
+		return "/" + name + " [sent|received|encode|decode|handle] [count] | csv | reset";
+	}
+	
+	@Override
+	public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+		String mode = args.length > 0 ? args[0] : "sent";
+		if (mode.equals("reset")) {
+			for (MessageStats stats : ctx.getStats()) {
+				stats.reset();
+			}
+			sender.sendMessage(new TextComponentString("Reset network stats for " + ctx.getChannel()));
+			return;
+		}
+		if (mode.equals("csv")) {
+			File file = server.getFile("concrete-netstats-" + ctx.getChannel() + ".csv");
+			try {
+				writeCsv(file);
+			} catch (IOException e) {
+				throw new CommandException("Failed to write " + file + ": " + e.getMessage());
+			}
+			sender.sendMessage(new TextComponentString("Wrote network stats to " + file));
+			return;
+		}
+		ToLongFunction<MessageStats> key;
+		switch (mode) {
+			case "sent": key = MessageStats::getSentBytes; break;
+			case "received": key = MessageStats::getReceivedBytes; break;
+			case "encode": key = MessageStats::getEncodeNanos; break;
+			case "decode": key = MessageStats::getDecodeNanos; break;
+			case "handle": key = MessageStats::getHandleNanos; break;
+			default: throw new WrongUsageException(getUsage(sender));
+		}
+		int count = args.length > 1 ? parseInt(args[1], 1) : 10;
+		List<MessageStats> all = ctx.getStats();
+		all.sort(Comparator.comparingLong(key).reversed());
+		sender.sendMessage(new TextComponentString("Top " + mode + " on " + ctx.getChannel() + ":"));
+		for (int i = 0; i < Math.min(count, all.size()); i++) {
+			MessageStats s = all.get(i);
+			if (key.applyAsLong(s) == 0) break;
+			sender.sendMessage(new TextComponentString(String.format("%s: sent %d (%s, max %s), received %d (%s, max %s), encode %.2fms, decode %.2fms, handle %.2fms, dropped %d, coalesced %d",
+					s.getMessageClass().getSimpleName(),
+					s.getSentCount(), bytes(s.getSentBytes()), bytes(s.getMaxSentBytes()),
+					s.getReceivedCount(), bytes(s.getReceivedBytes()), bytes(s.getMaxReceivedBytes()),
+					s.getEncodeNanos() / 1000000D, s.getDecodeNanos() / 1000000D, s.getHandleNanos() / 1000000D,
+					s.getDroppedCount(), s.getCoalescedCount())));
+		}
+	}
+	
+	private void writeCsv(File file) throws IOException {
+		try (PrintWriter pw = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			pw.println("class,sentCount,sentBytes,maxSentBytes,encodeNanos,receivedCount,receivedBytes,maxReceivedBytes,decodeNanos,handleNanos,droppedCount,coalescedCount");
+			for (MessageStats s : ctx.getStats()) {
+				pw.println(s.getMessageClass().getName() + "," + s.getSentCount() + "," + s.getSentBytes() + "," + s.getMaxSentBytes() + "," + s.getEncodeNanos()
+						+ "," + s.getReceivedCount() + "," + s.getReceivedBytes() + "," + s.getMaxReceivedBytes() + "," + s.getDecodeNanos() + "," + s.getHandleNanos()
+						+ "," + s.getDroppedCount() + "," + s.getCoalescedCount());
+			}
+		}
+	}
+	
+	private static String bytes(long bytes) {
+		if (bytes < 1024) return bytes + "B";
+		if (bytes < 1024 * 1024) return String.format("%.1fKiB", bytes / 1024D);
+		return String.format("%.1fMiB", bytes / (1024D * 1024D));
+	}
+}
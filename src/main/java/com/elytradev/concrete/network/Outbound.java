@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import javax.annotation.Nullable;
+
+/**
+ * A Message on its way to one or more connections. It is encoded once, the
+ * first time it's needed, unless its type has to be encoded separately for
+ * each connection. Local connections get a copy instead, if loopback is on,
+ * and connections whose schema isn't confirmed to match get the
+ * self-describing encoding.
+ */
+final class Outbound {
+	private final NetworkContext ctx;
+	private final MessageType type;
+	private final Message message;
+	
+	private Payload shared;
+	private Payload selfDescribed;
+	
+	public Outbound(NetworkContext ctx, MessageType type, Message message) {
+		this.ctx = ctx;
+		this.type = type;
+		this.message = message;
+	}
+	
+	public MessageType getType() {
+		return type;
+	}
+	
+	public Payload payloadFor(@Nullable ConnectionState state) {
+		if (ctx.isLoopback(state)) {
+			return ctx.loopback(type, message);
+		}
+		if (state != null && !state.schemaConfirmed) {
+			if (selfDescribed == null) {
+				selfDescribed = ctx.encodeSelfDescribed(type, message);
+			}
+			return selfDescribed;
+		}
+		if (type.isConnectionDependent()) {
+			return ctx.encode(type, message, state);
+		}
+		if (shared == null) {
+			shared = ctx.encode(type, message, null);
+		}
+		return shared;
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import javax.annotation.Nullable;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.primitives.Primitives;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A marshaller for values that fit in a fixed number of bits, which codecs
+ * pack into the message header alongside booleans. Used on its own, as in
+ * {@link DeltaCodec}, it writes the packed value in as few whole bytes as it
+ * fits in.
+ * <p>
+ * This is public only so codecs made by {@link CodecGenerator}, which live in
+ * their own class loader, can call it.
+ */
+public abstract class PackedMarshaller<T> implements Marshaller<T> {
+	protected final int bits;
+	
+	PackedMarshaller(int bits) {
+		this.bits = bits;
+	}
+	
+	/**
+	 * @return how many bits of the header this value takes
+	 */
+	public int getBits() {
+		return bits;
+	}
+	
+	/**
+	 * @return the given value packed into the low {@link #getBits()} bits,
+	 * 		or 0 for null
+	 */
+	public abstract long pack(@Nullable Object value);
+	public abstract T unpack(long packed);
+	
+	@Override
+	public void marshal(ByteBuf out, T t) {
+		long packed = pack(t);
+		for (int i = 0; i < bits; i += 8) {
+			out.writeByte((int) (packed >>> i));
+		}
+	}
+	
+	@Override
+	public T unmarshal(ByteBuf in) {
+		long packed = 0;
+		for (int i = 0; i < bits; i += 8) {
+			packed |= ((long) in.readUnsignedByte()) << i;
+		}
+		return unpack(packed);
+	}
+	
+	
+	/**
+	 * A packed marshaller for integers, which generated codecs call without
+	 * boxing primitive fields.
+	 */
+	public abstract static class LongPacked<T> extends PackedMarshaller<T> {
+		LongPacked(int bits) {
+			super(bits);
+		}
+		
+		public abstract long packLong(long value);
+		public abstract long unpackLong(long packed);
+	}
+	
+	/**
+	 * A packed marshaller for floating point numbers, which generated codecs
+	 * call without boxing primitive fields.
+	 */
+	public abstract static class DoublePacked<T> extends PackedMarshaller<T> {
+		DoublePacked(int bits) {
+			super(bits);
+		}
+		
+		public abstract long packDouble(double value);
+		public abstract double unpackDouble(long packed);
+	}
+	
+	
+	/**
+	 * @see com.elytradev.concrete.network.annotation.field.Bits
+	 */
+	static final class Ranged extends LongPacked<Number> {
+		private final Class<?> type;
+		private final long min;
+		private final long max;
+		
+		public Ranged(Class<?> type, int bits, long min) {
+			super(bits);
+			if (bits < 1 || bits > 63) {
+				throw new BadMessageException("@Bits must be from 1 to 63, got " + bits);
+			}
+			this.type = Primitives.unwrap(type);
+			this.min = min;
+			this.max = min + ((1L << bits) - 1);
+		}
+		
+		@Override
+		public long pack(Object value) {
+			return value == null ? 0 : packLong(((Number) value).longValue());
+		}
+		
+		@Override
+		public Number unpack(long packed) {
+			long l = unpackLong(packed);
+			if (type == byte.class) return (byte) l;
+			if (type == short.class) return (short) l;
+			if (type == int.class) return (int) l;
+			return l;
+		}
+		
+		@Override
+		public long packLong(long value) {
+			if (value < min || value > max) {
+				throw new BadMessageException("Value " + value + " does not fit in " + bits + " bits from " + min + " to " + max);
+			}
+			return value - min;
+		}
+		
+		@Override
+		public long unpackLong(long packed) {
+			return packed + min;
+		}
+	}
+	
+	/**
+	 * @see com.elytradev.concrete.network.annotation.field.Quantized
+	 */
+	static final class Quantized extends DoublePacked<Number> {
+		private final boolean isFloat;
+		private final double min;
+		private final double max;
+		private final long steps;
+		
+		public Quantized(Class<?> type, double min, double max, int bits) {
+			super(bits);
+			if (bits < 1 || bits > 32) {
+				throw new BadMessageException("@Quantized bits must be from 1 to 32, got " + bits);
+			}
+			if (!(max > min)) {
+				throw new BadMessageException("@Quantized max must be greater than min, got " + min + " to " + max);
+			}
+			this.isFloat = Primitives.unwrap(type) == float.class;
+			this.min = min;
+			this.max = max;
+			this.steps = (1L << bits) - 1;
+		}
+		
+		@Override
+		public long pack(Object value) {
+			return value == null ? 0 : packDouble(((Number) value).doubleValue());
+		}
+		
+		@Override
+		public Number unpack(long packed) {
+			double d = unpackDouble(packed);
+			return isFloat ? (Number) (float) d : (Number) d;
+		}
+		
+		@Override
+		public long packDouble(double value) {
+			if (value != value || value <= min) return 0;
+			if (value >= max) return steps;
+			return Math.round(((value - min) / (max - min)) * steps);
+		}
+		
+		@Override
+		public double unpackDouble(long packed) {
+			if (packed >= steps) return max;
+			return min + ((packed / (double) steps) * (max - min));
+		}
+	}
+	
+	/**
+	 * Enums are sent as their ordinal, in as few bits as can hold every
+	 * constant.
+	 */
+	static final class Ordinal<T> extends PackedMarshaller<T> {
+		private final Class<T> clazz;
+		private final T[] constants;
+		
+		public Ordinal(Class<T> clazz) {
+			super(bitsFor(clazz.getEnumConstants().length));
+			this.clazz = clazz;
+			this.constants = clazz.getEnumConstants();
+		}
+		
+		private static int bitsFor(int count) {
+			return count <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(count - 1);
+		}
+		
+		@Override
+		public long pack(Object value) {
+			return value == null ? 0 : ((Enum<?>) value).ordinal();
+		}
+		
+		@Override
+		public T unpack(long packed) {
+			if (packed >= constants.length) {
+				throw new BadMessageException("Enum ordinal " + packed + " out of range for " + clazz.getName());
+			}
+			return constants[(int) packed];
+		}
+	}
+	
+	
+	/**
+	 * ORs the low {@code count} bits of the given value into a bitfield
+	 * starting at the given index of the buffer, least significant first.
+	 */
+	static void writeBits(ByteBuf buf, int start, int bit, int count, long value) {
+		while (count > 0) {
+			int index = start + (bit / 8);
+			int shift = bit % 8;
+			int n = Math.min(count, 8 - shift);
+			int by = (int) (value & ((1 << n) - 1)) << shift;
+			buf.setByte(index, buf.getUnsignedByte(index) | by);
+			value >>>= n;
+			bit += n;
+			count -= n;
+		}
+	}
+	
+	/**
+	 * Reads bits written by {@link #writeBits}.
+	 */
+	static long readBits(ByteBuf buf, int start, int bit, int count) {
+		long value = 0;
+		int read = 0;
+		while (read < count) {
+			int shift = bit % 8;
+			int n = Math.min(count - read, 8 - shift);
+			long by = (buf.getUnsignedByte(start + (bit / 8)) >>> shift) & ((1 << n) - 1);
+			value |= by << read;
+			bit += n;
+			read += n;
+		}
+		return value;
+	}
+	
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.Packet;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.INetHandlerPlayClient;
+import net.minecraft.network.play.INetHandlerPlayServer;
+import net.minecraftforge.fml.common.network.internal.FMLProxyPacket;
+
+/**
+ * An encoded Message (or frame of Messages), ready to be sent to any number
+ * of connections. The data buffer is shared and must not have its indices
+ * modified.
+ */
+final class Payload {
+	public final String channel;
+	public final ByteBuf data;
+	
+	private List<Packet<INetHandlerPlayClient>> clientbound;
+	
+	public Payload(String channel, ByteBuf data) {
+		this.channel = channel;
+		this.data = data;
+	}
+	
+	public int size() {
+		return data.readableBytes();
+	}
+	
+	public List<Packet<INetHandlerPlayClient>> toClientboundPackets() {
+		if (clientbound == null) {
+			try {
+				clientbound = new FMLProxyPacket(new PacketBuffer(data.duplicate()), channel).toS3FPackets();
+			} catch (IOException e) {
+				throw new BadMessageException(e);
+			}
+		}
+		return clientbound;
+	}
+	
+	public Packet<INetHandlerPlayServer> toServerboundPacket() {
+		return new FMLProxyPacket(new PacketBuffer(data.duplicate()), channel).toC17Packet();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.World;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+/**
+ * The players of a world, bucketed by region so that radius sends only have
+ * to look at the players nearby. Rebuilt at most once per world tick, or when
+ * the amount of players in the world changes, so positions may be a tick out
+ * of date; callers still check the exact distance.
+ */
+final class PlayerGrid {
+	/**
+	 * Regions are 2x2 chunks.
+	 */
+	private static final int REGION_SHIFT = 5;
+	
+	private static final Map<World, PlayerGrid> grids = new WeakHashMap<>();
+	
+	static {
+		MinecraftForge.EVENT_BUS.register(PlayerGrid.class);
+	}
+	
+	private final Map<Long, List<EntityPlayerMP>> regions = Maps.newHashMap();
+	private long builtAt = Long.MIN_VALUE;
+	private int builtWith = -1;
+	
+	public static synchronized PlayerGrid get(World world) {
+		PlayerGrid grid = grids.get(world);
+		if (grid == null) {
+			grid = new PlayerGrid();
+			grids.put(world, grid);
+		}
+		return grid;
+	}
+	
+	/**
+	 * @return every player whose region overlaps the square of the given
+	 * 		radius around the given position, as of the last rebuild
+	 */
+	public synchronized List<EntityPlayerMP> getPlayersNear(World world, double x, double z, double radius) {
+		refresh(world);
+		List<EntityPlayerMP> out = Lists.newArrayList();
+		int minX = ((int) Math.floor(x - radius)) >> REGION_SHIFT;
+		int maxX = ((int) Math.floor(x + radius)) >> REGION_SHIFT;
+		int minZ = ((int) Math.floor(z - radius)) >> REGION_SHIFT;
+		int maxZ = ((int) Math.floor(z + radius)) >> REGION_SHIFT;
+		long cells = ((long) (maxX - minX) + 1) * ((long) (maxZ - minZ) + 1);
+		if (cells > regions.size()) {
+			// huge radius; cheaper to go through the occupied regions
+			for (Map.Entry<Long, List<EntityPlayerMP>> en : regions.entrySet()) {
+				int rx = (int) (en.getKey() >> 32);
+				int rz = (int) (long) en.getKey();
+				if (rx >= minX && rx <= maxX && rz >= minZ && rz <= maxZ) {
+					out.addAll(en.getValue());
+				}
+			}
+		} else {
+			for (int rx = minX; rx <= maxX; rx++) {
+				for (int rz = minZ; rz <= maxZ; rz++) {
+					List<EntityPlayerMP> li = regions.get(key(rx, rz));
+					if (li != null) {
+						out.addAll(li);
+					}
+				}
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Gridded players refer back to their world, even after they've left it,
+	 * so the weak map can't let go of it by itself.
+	 */
+	@SubscribeEvent
+	public static synchronized void onWorldUnload(WorldEvent.Unload e) {
+		grids.remove(e.getWorld());
+	}
+	
+	private void refresh(World world) {
+		long now = world.getTotalWorldTime();
+		int count = world.playerEntities.size();
+		if (now == builtAt && count == builtWith) return;
+		builtAt = now;
+		builtWith = count;
+		regions.clear();
+		for (EntityPlayer ep : world.playerEntities) {
+			if (!(ep instanceof EntityPlayerMP)) continue;
+			long k = key(((int) Math.floor(ep.posX)) >> REGION_SHIFT, ((int) Math.floor(ep.posZ)) >> REGION_SHIFT);
+			List<EntityPlayerMP> li = regions.get(k);
+			if (li == null) {
+				li = Lists.newArrayListWithCapacity(4);
+				regions.put(k, li);
+			}
+			li.add((EntityPlayerMP) ep);
+		}
+	}
+	
+	private static long key(int rx, int rz) {
+		return (((long) rx) << 32) | (rz & 0xFFFFFFFFL);
+	}
+}
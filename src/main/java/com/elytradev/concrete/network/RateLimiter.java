@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import com.elytradev.concrete.network.annotation.type.RateLimited;
+import com.elytradev.concrete.network.annotation.type.RateLimited.Overflow;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+/**
+ * A token bucket for one {@link RateLimited} Message type from one player,
+ * along with the Message waiting to be handled if it coalesces.
+ */
+final class RateLimiter extends TokenBucket {
+	public enum Offer {
+		HANDLE_NOW,
+		/**
+		 * The Message is now waiting, and the limiter needs to be polled with
+		 * {@link RateLimiter#takeIfReady()} until it is handled.
+		 */
+		WAITING,
+		/**
+		 * The Message replaced one that was already waiting.
+		 */
+		REPLACED
+	}
+	
+	public final MessageType type;
+	public final Overflow overflow;
+	public final ConnectionState state;
+	public final EntityPlayer sender;
+	
+	private Message pending;
+	
+	public RateLimiter(MessageType type, RateLimited limit, ConnectionState state, EntityPlayer sender) {
+		super(limit.perSecond(), limit.burst() > 0 ? limit.burst() : Math.max(1, Math.ceil(limit.perSecond())));
+		this.type = type;
+		this.overflow = limit.overflow();
+		this.state = state;
+		this.sender = sender;
+	}
+	
+	/**
+	 * Offer a newly received Message of a coalescing type. Once a Message is
+	 * waiting, later ones replace it rather than overtaking it.
+	 */
+	public synchronized Offer offer(Message m) {
+		if (pending == null) {
+			if (tryAcquire()) return Offer.HANDLE_NOW;
+			pending = m;
+			return Offer.WAITING;
+		}
+		pending.recycle();
+		pending = m;
+		type.stats.recordCoalesced();
+		return Offer.REPLACED;
+	}
+	
+	/**
+	 * @return the waiting Message if the limit now allows it, or null
+	 */
+	public synchronized Message takeIfReady() {
+		if (pending == null || !tryAcquire()) return null;
+		Message m = pending;
+		pending = null;
+		return m;
+	}
+	
+	/**
+	 * Drop the waiting Message, if any, without handling it.
+	 */
+	public synchronized void discardPending() {
+		if (pending != null) {
+			pending.recycle();
+			pending = null;
+			type.stats.recordDropped();
+		}
+	}
+}
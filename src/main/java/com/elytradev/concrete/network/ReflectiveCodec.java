@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The default {@link MessageCodec}, which goes through each {@link WireField}
+ * following a plan worked out once at registration time.
+ */
+final class ReflectiveCodec implements MessageCodec {
+	private final WireField<?>[] fields;
+	/**
+	 * The index of each field's bit in the header, or -1 if it doesn't have
+	 * one.
+	 */
+	private final int[] bitIndices;
+	/**
+	 * The index in {@link #fields} of the field each header bit belongs to.
+	 */
+	private final int[] bitFields;
+	/**
+	 * The index in the header of each packed field's value, which come after
+	 * all the single bits, or -1 if it isn't packed.
+	 */
+	private final int[] packedIndices;
+	private final int headerBytes;
+	
+	public ReflectiveCodec(List<WireField<?>> fields) {
+		this.fields = fields.toArray(new WireField<?>[fields.size()]);
+		this.bitIndices = new int[this.fields.length];
+		this.packedIndices = new int[this.fields.length];
+		int bits = 0;
+		for (int i = 0; i < this.fields.length; i++) {
+			WireField<?> wf = this.fields[i];
+			if (wf.getType() == Boolean.TYPE || wf.isOptional()) {
+				bitIndices[i] = bits++;
+			} else {
+				bitIndices[i] = -1;
+			}
+		}
+		this.bitFields = new int[bits];
+		for (int i = 0; i < this.fields.length; i++) {
+			if (bitIndices[i] != -1) {
+				bitFields[bitIndices[i]] = i;
+			}
+			if (this.fields[i].isPacked()) {
+				packedIndices[i] = bits;
+				bits += this.fields[i].getPackedBits();
+			} else {
+				packedIndices[i] = -1;
+			}
+		}
+		this.headerBytes = (bits + 7) / 8;
+	}
+	
+	@Override
+	public void encode(Message m, ByteBuf out) {
+		int header = out.writerIndex();
+		out.writeZero(headerBytes);
+		for (int i = 0; i < bitFields.length; i++) {
+			WireField<?> wf = fields[bitFields[i]];
+			boolean set;
+			if (wf.getType() == Boolean.TYPE) {
+				set = (Boolean) wf.get(m);
+			} else {
+				set = wf.get(m) != null;
+			}
+			if (set) {
+				PackedMarshaller.writeBits(out, header, i, 1, 1);
+			}
+		}
+		for (int i = 0; i < fields.length; i++) {
+			WireField<?> wf = fields[i];
+			if (packedIndices[i] != -1) {
+				PackedMarshaller.writeBits(out, header, packedIndices[i], wf.getPackedBits(), wf.pack(m));
+			} else if (wf.getType() != Boolean.TYPE) {
+				wf.marshal(m, out);
+			}
+		}
+	}
+	
+	@Override
+	public void decode(Message m, ByteBuf in) {
+		int header = in.readerIndex();
+		in.skipBytes(headerBytes);
+		for (int i = 0; i < fields.length; i++) {
+			WireField<?> wf = fields[i];
+			int bit = bitIndices[i];
+			if (wf.getType() == Boolean.TYPE) {
+				((WireField<Boolean>) wf).set(m, isSet(in, header, bit));
+			} else if (bit == -1 || isSet(in, header, bit)) {
+				if (packedIndices[i] != -1) {
+					wf.unpack(m, PackedMarshaller.readBits(in, header, packedIndices[i], wf.getPackedBits()));
+				} else {
+					wf.unmarshal(m, in);
+				}
+			}
+		}
+	}
+	
+	private static boolean isSet(ByteBuf in, int header, int bit) {
+		return (in.getUnsignedByte(header + (bit / 8)) & (1 << (bit % 8))) != 0;
+	}
+	
+}
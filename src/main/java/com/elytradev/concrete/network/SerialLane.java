@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.elytradev.concrete.common.ConcreteLog;
+
+/**
+ * Runs tasks one at a time, in order, on a shared pool. Only one task from a
+ * lane is ever queued on the pool, so many lanes can share a few threads
+ * without one of them holding the rest up for long.
+ */
+final class SerialLane implements Executor {
+	/**
+	 * How many tasks a lane runs before giving its thread to another lane.
+	 */
+	private static final int TASKS_PER_TURN = 16;
+	
+	private final Executor pool;
+	private final int capacity;
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	private boolean scheduled = false;
+	
+	public SerialLane(Executor pool, int capacity) {
+		this.pool = pool;
+		this.capacity = capacity;
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		synchronized (tasks) {
+			if (tasks.size() >= capacity) {
+				throw new RejectedExecutionException("Lane is full, " + capacity + " tasks are waiting");
+			}
+			tasks.add(task);
+			if (scheduled) return;
+			scheduled = true;
+		}
+		pool.execute(this::drain);
+	}
+	
+	private void drain() {
+		for (int i = 0; i < TASKS_PER_TURN; i++) {
+			Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+				if (task == null) {
+					scheduled = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				ConcreteLog.error("Exception while handling an offloaded message", t);
+			}
+		}
+		synchronized (tasks) {
+			if (tasks.isEmpty()) {
+				scheduled = false;
+				return;
+			}
+		}
+		pool.execute(this::drain);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.server.management.PlayerList;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Which players have asked to hear about which topics at which positions.
+ * Players are kept by UUID, so subscriptions carry over when they respawn.
+ * A subscription expires once its player leaves, changes dimension, or
+ * goes out of range; this is noticed when something is next sent to it.
+ */
+final class Subscriptions {
+	private static final class Key {
+		public final int dimension;
+		public final long pos;
+		public final String topic;
+		
+		public Key(int dimension, long pos, String topic) {
+			this.dimension = dimension;
+			this.pos = pos;
+			this.topic = topic;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key that = (Key) obj;
+			return dimension == that.dimension && pos == that.pos && topic.equals(that.topic);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(dimension, pos, topic);
+		}
+	}
+	
+	private final Map<Key, Set<UUID>> subscribers = Maps.newHashMap();
+	private final Map<UUID, Set<Key>> byPlayer = Maps.newHashMap();
+	
+	/**
+	 * @return false if the player already has as many subscriptions as they
+	 * 		may
+	 */
+	public synchronized boolean subscribe(EntityPlayerMP player, BlockPos pos, String topic, int max) {
+		Set<Key> keys = byPlayer.get(player.getUniqueID());
+		if (keys == null) {
+			keys = Sets.newHashSet();
+			byPlayer.put(player.getUniqueID(), keys);
+		}
+		Key key = new Key(player.dimension, pos.toLong(), topic);
+		if (keys.contains(key)) return true;
+		if (keys.size() >= max) return false;
+		keys.add(key);
+		Set<UUID> set = subscribers.get(key);
+		if (set == null) {
+			set = Sets.newHashSet();
+			subscribers.put(key, set);
+		}
+		set.add(player.getUniqueID());
+		return true;
+	}
+	
+	public synchronized void unsubscribe(UUID id, int dimension, BlockPos pos, String topic) {
+		Key key = new Key(dimension, pos.toLong(), topic);
+		Set<Key> keys = byPlayer.get(id);
+		if (keys != null && keys.remove(key) && keys.isEmpty()) {
+			byPlayer.remove(id);
+		}
+		remove(key, id);
+	}
+	
+	public synchronized void unsubscribeAll(UUID id) {
+		Set<Key> keys = byPlayer.remove(id);
+		if (keys == null) return;
+		for (Key key : keys) {
+			remove(key, id);
+		}
+	}
+	
+	/**
+	 * @return the players subscribed to the given topic at the given
+	 * 		position who are still online, in the same dimension, and within
+	 * 		range of it, after forgetting those who aren't
+	 */
+	public synchronized List<EntityPlayerMP> getSubscribers(PlayerList players, int dimension, BlockPos pos, String topic, double range) {
+		Key key = new Key(dimension, pos.toLong(), topic);
+		Set<UUID> set = subscribers.get(key);
+		if (set == null) return Lists.newArrayList();
+		List<EntityPlayerMP> out = Lists.newArrayListWithCapacity(set.size());
+		double rangeSq = range * range;
+		Iterator<UUID> iter = set.iterator();
+		while (iter.hasNext()) {
+			UUID id = iter.next();
+			EntityPlayerMP player = players.getPlayerByUUID(id);
+			if (player != null && player.dimension == dimension
+					&& player.getDistanceSq(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5) <= rangeSq) {
+				out.add(player);
+			} else {
+				iter.remove();
+				Set<Key> keys = byPlayer.get(id);
+				if (keys != null && keys.remove(key) && keys.isEmpty()) {
+					byPlayer.remove(id);
+				}
+			}
+		}
+		if (set.isEmpty()) {
+			subscribers.remove(key);
+		}
+		return out;
+	}
+	
+	private void remove(Key key, UUID id) {
+		Set<UUID> set = subscribers.get(key);
+		if (set != null && set.remove(id) && set.isEmpty()) {
+			subscribers.remove(key);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.elytradev.concrete.common.ConcreteLog;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.relauncher.Side;
+
+/**
+ * Appends every payload sent and received by the {@link NetworkContext}s it's
+ * given to, to a memory-mapped capture file, for {@link TrafficReplay} to
+ * play back later. One recorder can be shared by several contexts.
+ * <p>
+ * The file starts with {@code [int magic][int version][long start millis]},
+ * followed by records of {@code [u8 kind][u8 side][long nanos][int connection]
+ * [u8 frame id][int packet id][u16 channel length][channel][int length][payload]},
+ * and ends at the first kind of 0. {@code side} is the side that sent or
+ * received the payload, and {@code nanos} are counted from when recording
+ * started. {@code frame id} is the first byte of the payload, and
+ * {@code packet id} is the id of the Message it holds, extended ids
+ * included, or -1 if it's a batch or other frame rather than a single
+ * Message with an id.
+ */
+public final class TrafficRecorder implements Closeable {
+	static final int MAGIC = 0x434E4350;
+	static final int VERSION = 2;
+	
+	static final int RECEIVED = 1;
+	static final int SENT = 2;
+	
+	/**
+	 * How much more of the file is mapped whenever the current mapping runs
+	 * out.
+	 */
+	private static final int REGION_SIZE = 16 * 1024 * 1024;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long startNanos = System.nanoTime();
+	
+	private MappedByteBuffer region;
+	private long regionStart;
+	private boolean closed = false;
+	
+	private TrafficRecorder(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		// a leftover capture must not show through past the end of this one
+		this.file.setLength(0);
+		map(0, 16);
+		region.putInt(MAGIC);
+		region.putInt(VERSION);
+		region.putLong(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Start a new capture in the given file, replacing anything in it.
+	 */
+	public static TrafficRecorder open(File file) throws IOException {
+		return new TrafficRecorder(file);
+	}
+	
+	synchronized void record(int kind, Side side, ConnectionState state, String channelName, ByteBuf data) {
+		if (closed) return;
+		long nanos = System.nanoTime() - startNanos;
+		byte[] channelBytes = channelName.getBytes(StandardCharsets.UTF_8);
+		int len = data.readableBytes();
+		int size = 1 + 1 + 8 + 4 + 1 + 4 + 2 + channelBytes.length + 4 + len;
+		if (region.remaining() < size + 1) {
+			try {
+				// keep a zero kind after every record, so the file always ends
+				map(regionStart + region.position(), size + 1);
+			} catch (IOException e) {
+				ConcreteLog.warn("Stopping traffic capture, as it could not be grown", e);
+				closeQuietly();
+				return;
+			}
+		}
+		region.put((byte) kind);
+		region.put((byte) (side.isServer() ? 0 : 1));
+		region.putLong(nanos);
+		region.putInt(state.id);
+		region.put(len > 0 ? data.getByte(data.readerIndex()) : 0);
+		region.putInt(packetIdOf(data));
+		region.putShort((short) channelBytes.length);
+		region.put(channelBytes);
+		region.putInt(len);
+		int limit = region.limit();
+		region.limit(region.position() + len);
+		data.getBytes(data.readerIndex(), region);
+		region.limit(limit);
+	}
+	
+	/**
+	 * @return the id of the Message in the given payload, or -1 if it isn't
+	 * 		one Message with an id
+	 */
+	private static int packetIdOf(ByteBuf data) {
+		if (!data.isReadable()) return -1;
+		int id = data.getUnsignedByte(data.readerIndex());
+		if (id < NetworkContext.FIRST_RESERVED_ID) return id;
+		if (id != NetworkContext.EXTENDED_ID) return -1;
+		try {
+			ByteBuf rest = data.duplicate();
+			rest.skipBytes(1);
+			return NetworkContext.FIRST_RESERVED_ID + ByteBufUtils.readVarInt(rest, 3);
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			// received payloads may be garbage, which is still worth keeping
+			return -1;
+		}
+	}
+	
+	/**
+	 * Map the file from the given position on, which is where the next record
+	 * will be written. Records never span two mappings, so a mapping may
+	 * overlap the unused end of the one before it.
+	 */
+	private void map(long position, int needed) throws IOException {
+		regionStart = position;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, needed));
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		long end = regionStart + region.position();
+		region.force();
+		try {
+			channel.truncate(end);
+		} catch (IOException e) {
+			// some platforms can't truncate a file that's still mapped, but
+			// the zeroes past the end read as the end of the capture anyway
+		}
+		channel.close();
+		file.close();
+	}
+	
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			ConcreteLog.warn("Failed to close traffic capture", e);
+		}
+	}
+}
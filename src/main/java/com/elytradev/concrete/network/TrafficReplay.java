@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+import javax.annotation.Nullable;
+
+import com.elytradev.concrete.common.ConcreteLog;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.relauncher.Side;
+
+/**
+ * Feeds the payloads in a {@link TrafficRecorder} capture back through a
+ * {@link NetworkContext}, decoding and handling them as if they had just
+ * arrived, for benchmarking codecs and handlers against real traffic.
+ * <p>
+ * Each connection in the capture gets a stand-in connection of its own, so
+ * interned strings and delta histories work as they did originally, as long
+ * as the capture covers the start of the connection. Rate limits aren't
+ * applied. Payloads that fail to decode are counted and skipped.
+ */
+public final class TrafficReplay {
+	public static final class Summary {
+		public final int payloads;
+		public final int failures;
+		public final long nanos;
+		
+		private Summary(int payloads, int failures, long nanos) {
+			this.payloads = payloads;
+			this.failures = failures;
+			this.nanos = nanos;
+		}
+		
+		@Override
+		public String toString() {
+			return payloads + " payloads replayed in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms, " + failures + " failed";
+		}
+	}
+	
+	private final NetworkContext ctx;
+	private final File capture;
+	
+	private Side side = Side.SERVER;
+	private double speed = 1;
+	private IntFunction<EntityPlayer> players = connection -> null;
+	
+	public TrafficReplay(NetworkContext ctx, File capture) {
+		this.ctx = ctx;
+		this.capture = capture;
+	}
+	
+	/**
+	 * Replay the payloads received on the given side, which includes those
+	 * recorded being sent from the other side. Defaults to the server.
+	 */
+	public TrafficReplay setSide(Side side) {
+		this.side = side;
+		return this;
+	}
+	
+	/**
+	 * Replay this many times faster than the traffic was recorded, or as
+	 * fast as possible if 0. Defaults to 1.
+	 */
+	public TrafficReplay setSpeed(double speed) {
+		if (speed < 0) throw new IllegalArgumentException("Speed cannot be negative");
+		this.speed = speed;
+		return this;
+	}
+	
+	/**
+	 * Supply the player that each recorded connection's payloads are from,
+	 * by connection id. Needed to replay on the server, where handlers are
+	 * given the sending player and scheduled on their world.
+	 */
+	public TrafficReplay setPlayers(IntFunction<EntityPlayer> players) {
+		this.players = players;
+		return this;
+	}
+	
+	/**
+	 * Replay the whole capture on the calling thread, which stands in for
+	 * the netty thread.
+	 */
+	public Summary run() throws IOException {
+		Map<Integer, ConnectionState> connections = Maps.newHashMap();
+		Map<Integer, EntityPlayer> senders = Maps.newHashMap();
+		int payloads = 0;
+		int failures = 0;
+		long start = System.nanoTime();
+		long first = -1;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(capture)))) {
+			if (in.readInt() != TrafficRecorder.MAGIC) {
+				throw new IOException(capture + " is not a traffic capture");
+			}
+			int version = in.readInt();
+			if (version != TrafficRecorder.VERSION) {
+				throw new IOException(capture + " is a version " + version + " traffic capture, expected " + TrafficRecorder.VERSION);
+			}
+			in.readLong();
+			while (true) {
+				int kind;
+				try {
+					kind = in.readUnsignedByte();
+				} catch (EOFException e) {
+					break;
+				}
+				if (kind == 0) break;
+				Side recordedSide = in.readUnsignedByte() == 0 ? Side.SERVER : Side.CLIENT;
+				long nanos = in.readLong();
+				int connection = in.readInt();
+				in.readUnsignedByte();
+				in.readInt();
+				byte[] channel = new byte[in.readUnsignedShort()];
+				in.readFully(channel);
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				
+				Side receivedOn = kind == TrafficRecorder.RECEIVED ? recordedSide : (recordedSide.isServer() ? Side.CLIENT : Side.SERVER);
+				if (receivedOn != side || !ctx.getChannel().equals(new String(channel, StandardCharsets.UTF_8))) continue;
+				
+				if (speed > 0) {
+					if (first == -1) first = nanos;
+					long due = start + (long) ((nanos - first) / speed);
+					long now;
+					while ((now = System.nanoTime()) < due) {
+						LockSupport.parkNanos(due - now);
+					}
+				}
+				ConnectionState state = connections.get(connection);
+				if (state == null) {
+					state = new ConnectionState(null);
+					connections.put(connection, state);
+					if (side.isServer()) {
+						EntityPlayer player = players.apply(connection);
+						if (player == null) {
+							ConcreteLog.warn("Skipping payloads from connection {}, as it has no stand-in player", connection);
+						}
+						senders.put(connection, player);
+					}
+				}
+				EntityPlayer sender = senders.get(connection);
+				if (side.isServer() && sender == null || !replay(state, sender, Unpooled.wrappedBuffer(data))) {
+					failures++;
+				}
+				payloads++;
+			}
+		}
+		return new Summary(payloads, failures, System.nanoTime() - start);
+	}
+	
+	private boolean replay(ConnectionState state, @Nullable EntityPlayer sender, ByteBuf payload) {
+		try {
+			ctx.receive(side, payload, state, sender);
+			return true;
+		} catch (RuntimeException e) {
+			ConcreteLog.debug("Failed to replay a payload", e);
+			return false;
+		}
+	}
+}
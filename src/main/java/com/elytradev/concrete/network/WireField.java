@@ -29,16 +29,33 @@
 
 package com.elytradev.concrete.network;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.UUID;
 
+import com.elytradev.concrete.network.annotation.field.Bits;
+import com.elytradev.concrete.network.annotation.field.Interned;
 import com.elytradev.concrete.network.annotation.field.MarshalledAs;
 import com.elytradev.concrete.network.annotation.field.Optional;
+import com.elytradev.concrete.network.annotation.field.Quantized;
 import com.elytradev.concrete.network.exception.BadMessageException;
 import com.elytradev.concrete.reflect.accessor.Accessor;
 import com.elytradev.concrete.reflect.accessor.Accessors;
+import com.google.common.base.Defaults;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Primitives;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraftforge.fluids.FluidStack;
 
 class WireField<T> {
 	private final Field f;
@@ -46,6 +63,45 @@ class WireField<T> {
 	private final Marshaller<T> marshaller;
 	private final Class<T> type;
 	private final boolean optional;
+	/**
+	 * Whether values of this field are immutable and come out of its
+	 * marshaller unchanged, so {@link #copy} can share them.
+	 */
+	private final boolean shareable;
+	/**
+	 * The primitive type {@link #marshaller} reads and writes, if it is a
+	 * primitive marshaller and the field is a number, otherwise null.
+	 */
+	private final Class<?> wirePrimitive;
+	/**
+	 * For primitive marshallers; {@code (Object)wirePrimitive}, and
+	 * {@code (Object, wirePrimitive)void}, casting like Java would.
+	 */
+	private final MethodHandle primitiveGetter;
+	private final MethodHandle primitiveSetter;
+	/**
+	 * Everything about this field that affects how it's encoded, for telling
+	 * whether both sides agree on it.
+	 */
+	private final String descriptor;
+	
+	/**
+	 * @return the wire fields of the given class and its superclasses, which
+	 * 		are those that are neither static nor transient
+	 */
+	public static List<WireField<?>> forClass(Class<?> clazz) {
+		List<WireField<?>> fields = Lists.newArrayList();
+		Class<?> cursor = clazz;
+		while (cursor != null && cursor != Object.class) {
+			for (Field f : cursor.getDeclaredFields()) {
+				if (!Modifier.isTransient(f.getModifiers()) && !Modifier.isStatic(f.getModifiers())) {
+					fields.add(new WireField<>(f));
+				}
+			}
+			cursor = cursor.getSuperclass();
+		}
+		return fields;
+	}
 	
 	public WireField(Field f) {
 		f.setAccessible(true);
@@ -57,14 +113,40 @@ class WireField<T> {
 			throw Throwables.propagate(e);
 		}
 		MarshalledAs ma = f.getAnnotation(MarshalledAs.class);
-		if (ma != null) {
+		Bits bits = f.getAnnotation(Bits.class);
+		Quantized quantized = f.getAnnotation(Quantized.class);
+		Class<?> unwrapped = Primitives.unwrap(type);
+		if (bits != null) {
+			if (unwrapped != byte.class && unwrapped != short.class && unwrapped != int.class && unwrapped != long.class) {
+				throw new BadMessageException("@Bits can only be used on integer fields, not " + type + " " + f.getDeclaringClass().getName() + "." + f.getName());
+			}
+			marshaller = (Marshaller<T>) new PackedMarshaller.Ranged(type, bits.value(), bits.min());
+		} else if (quantized != null) {
+			if (unwrapped != float.class && unwrapped != double.class) {
+				throw new BadMessageException("@Quantized can only be used on float and double fields, not " + type + " " + f.getDeclaringClass().getName() + "." + f.getName());
+			}
+			marshaller = (Marshaller<T>) new PackedMarshaller.Quantized(type, quantized.min(), quantized.max(), quantized.bits());
+		} else if (f.isAnnotationPresent(Interned.class)) {
+			if (type == String.class) {
+				marshaller = (Marshaller<T>) DefaultMarshallers.INTERNED_STRING;
+			} else if (type == ResourceLocation.class) {
+				marshaller = (Marshaller<T>) DefaultMarshallers.INTERNED_RESOURCELOCATION;
+			} else if (type == ItemStack.class) {
+				marshaller = (Marshaller<T>) DefaultMarshallers.INTERNED_ITEMSTACK;
+			} else if (type == FluidStack.class) {
+				marshaller = (Marshaller<T>) DefaultMarshallers.INTERNED_FLUIDSTACK;
+			} else {
+				throw new BadMessageException("@Interned can only be used on String, ResourceLocation, ItemStack, and FluidStack fields, not " + type + " " + f.getDeclaringClass().getName() + "." + f.getName());
+			}
+		} else if (ma != null) {
 			marshaller = DefaultMarshallers.getByName(ma.value());
 		} else if (Marshallable.class.isAssignableFrom(type)) {
-			marshaller = new MarshallableMarshaller(type);
+			marshaller = (Marshaller<T>) new MarshallableMarshaller<>(type.asSubclass(Marshallable.class));
 		} else {
 			marshaller = DefaultMarshallers.getByType(type);
 		}
 		optional = f.getAnnotation(Optional.class) != null;
+		shareable = type == Boolean.TYPE || (ma == null && (type == String.class || type == ResourceLocation.class));
 		if (marshaller == null && type != Boolean.TYPE) {
 			String annot = "";
 			if (ma != null) {
@@ -75,6 +157,64 @@ class WireField<T> {
 			}
 			throw new BadMessageException("Cannot find an appropriate marshaller for field " + annot + type + " " + f.getDeclaringClass().getName() + "." + f.getName());
 		}
+		descriptor = describe(f, ma, bits, quantized, optional);
+		Class<?> fieldPrimitive = unwrapped;
+		Class<?> wire = getPrimitiveType(marshaller);
+		if (wire != null && fieldPrimitive.isPrimitive() && fieldPrimitive != Boolean.TYPE && fieldPrimitive != Character.TYPE) {
+			wirePrimitive = wire;
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				MethodHandle getter = lookup.unreflectGetter(f);
+				getter = MethodHandles.explicitCastArguments(getter, MethodType.methodType(fieldPrimitive, Object.class));
+				primitiveGetter = MethodHandles.explicitCastArguments(getter, MethodType.methodType(wire, Object.class));
+				MethodHandle setter = lookup.unreflectSetter(f);
+				setter = MethodHandles.explicitCastArguments(setter, MethodType.methodType(void.class, Object.class, fieldPrimitive));
+				primitiveSetter = MethodHandles.explicitCastArguments(setter, MethodType.methodType(void.class, Object.class, wire));
+			} catch (IllegalAccessException e) {
+				throw Throwables.propagate(e);
+			}
+		} else {
+			wirePrimitive = null;
+			primitiveGetter = null;
+			primitiveSetter = null;
+		}
+	}
+	
+	private static String describe(Field f, MarshalledAs ma, Bits bits, Quantized quantized, boolean optional) {
+		StringBuilder sb = new StringBuilder(f.getGenericType().getTypeName());
+		if (f.getType().isEnum()) {
+			sb.append('{');
+			for (Object constant : f.getType().getEnumConstants()) {
+				sb.append(((Enum<?>) constant).name()).append(',');
+			}
+			sb.append('}');
+		}
+		if (bits != null) sb.append(" @Bits(").append(bits.value()).append(',').append(bits.min()).append(')');
+		if (quantized != null) sb.append(" @Quantized(").append(quantized.min()).append(',').append(quantized.max()).append(',').append(quantized.bits()).append(')');
+		if (f.isAnnotationPresent(Interned.class)) sb.append(" @Interned");
+		if (ma != null) sb.append(" @MarshalledAs(").append(ma.value()).append(')');
+		if (optional) sb.append(" @Optional");
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the primitive type the given marshaller can read and write
+	 * 		without boxing, or null
+	 */
+	static Class<?> getPrimitiveType(Marshaller<?> m) {
+		if (m instanceof IntMarshaller) return int.class;
+		if (m instanceof LongMarshaller) return long.class;
+		if (m instanceof FloatMarshaller) return float.class;
+		if (m instanceof DoubleMarshaller) return double.class;
+		return null;
+	}
+	
+	/**
+	 * @return true if this field has to be encoded separately for each
+	 * 		connection
+	 */
+	public boolean isConnectionDependent() {
+		return DefaultMarshallers.isConnectionDependent(marshaller);
 	}
 	
 	public T get(Object owner) {
@@ -86,16 +226,169 @@ class WireField<T> {
 	}
 	
 	
+	/**
+	 * @return true if this field's value is packed into the header bitfield
+	 * 		by {@link #pack} rather than written with {@link #marshal}
+	 */
+	public boolean isPacked() {
+		return marshaller instanceof PackedMarshaller;
+	}
+	
+	/**
+	 * @return the number of header bits taken by {@link #pack}
+	 */
+	public int getPackedBits() {
+		return ((PackedMarshaller<?>) marshaller).getBits();
+	}
+	
+	public long pack(Object owner) {
+		T value = accessor.get(owner);
+		if (value == null && !isOptional()) {
+			throw new BadMessageException("Wire fields cannot be null (in " + type + " " + f.getDeclaringClass().getName() + "." + f.getName() + ")");
+		}
+		return ((PackedMarshaller<?>) marshaller).pack(value);
+	}
+	
+	public void unpack(Object owner, long packed) {
+		accessor.set(owner, ((PackedMarshaller<T>) marshaller).unpack(packed));
+	}
+	
+	/**
+	 * Copies this field from one Message to another, such that the copy has
+	 * the value it would have had if the Message was sent over the network.
+	 * Strings and resource locations are shared; everything else, numbers
+	 * and enums included, is marshalled and unmarshalled again, so it's
+	 * rounded, range checked, or converted just as it would be when sent.
+	 */
+	public void copy(Object from, Object to) {
+		T value = accessor.get(from);
+		if (value == null) {
+			if (!isOptional()) {
+				throw new BadMessageException("Wire fields cannot be null (in " + type + " " + f.getDeclaringClass().getName() + "." + f.getName() + ")");
+			}
+		} else if (!shareable) {
+			ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer();
+			try {
+				marshal(from, scratch);
+				unmarshal(to, scratch);
+			} finally {
+				scratch.release();
+			}
+			return;
+		}
+		accessor.set(to, value);
+	}
+	
+	/**
+	 * @return the given value if it's of an immutable type, otherwise a copy
+	 * 		of it made by marshalling and unmarshalling it
+	 */
+	public T copyValue(T value) {
+		if (value == null || isImmutable(value.getClass())) return value;
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		ConnectionState prev = ConnectionDictionary.enter(null);
+		try {
+			marshaller.marshal(scratch, value);
+			return marshaller.unmarshal(scratch);
+		} finally {
+			ConnectionDictionary.exit(prev);
+			scratch.release();
+		}
+	}
+	
+	private static boolean isImmutable(Class<?> clazz) {
+		return Primitives.isWrapperType(clazz) || clazz.isEnum() || clazz == String.class
+				|| clazz == BlockPos.class || clazz == ResourceLocation.class || clazz == UUID.class;
+	}
+	
+	/**
+	 * Sets this field back to its default value of null, 0, or false.
+	 */
+	public void reset(Object owner) {
+		accessor.set(owner, type.isPrimitive() ? Defaults.defaultValue(type) : null);
+	}
+	
 	public void marshal(Object owner, ByteBuf out) {
+		if (wirePrimitive != null && type.isPrimitive()) {
+			marshalPrimitive(owner, out);
+			return;
+		}
 		T value = accessor.get(owner);
 		if (value == null) {
 			if (isOptional()) return;
 			throw new BadMessageException("Wire fields cannot be null (in " + type + " " + f.getDeclaringClass().getName() + "." + f.getName() + ")");
 		}
-		marshaller.marshal(out, value);
+		if (wirePrimitive != null) {
+			marshalPrimitive(owner, out);
+		} else {
+			marshaller.marshal(out, value);
+		}
+	}
+	/**
+	 * Writes this field on its own, rather than as part of a header and
+	 * body, for the self-describing encoding.
+	 * 
+	 * @return false if the field is null, and nothing was written
+	 */
+	public boolean marshalAlone(Object owner, ByteBuf out) {
+		if (type == Boolean.TYPE) {
+			out.writeBoolean((Boolean) accessor.get(owner));
+			return true;
+		}
+		if (accessor.get(owner) == null) {
+			if (isOptional()) return false;
+			throw new BadMessageException("Wire fields cannot be null (in " + type + " " + f.getDeclaringClass().getName() + "." + f.getName() + ")");
+		}
+		marshal(owner, out);
+		return true;
 	}
+	
+	public void unmarshalAlone(Object owner, ByteBuf in) {
+		if (type == Boolean.TYPE) {
+			accessor.set(owner, (T) Boolean.valueOf(in.readBoolean()));
+		} else {
+			unmarshal(owner, in);
+		}
+	}
+	
 	public void unmarshal(Object owner, ByteBuf in) {
-		accessor.set(owner, marshaller.unmarshal(in));
+		if (wirePrimitive != null) {
+			unmarshalPrimitive(owner, in);
+		} else {
+			accessor.set(owner, marshaller.unmarshal(in));
+		}
+	}
+	
+	private void marshalPrimitive(Object owner, ByteBuf out) {
+		try {
+			if (wirePrimitive == int.class) {
+				((IntMarshaller) marshaller).writeInt(out, (int) primitiveGetter.invokeExact(owner));
+			} else if (wirePrimitive == long.class) {
+				((LongMarshaller) marshaller).writeLong(out, (long) primitiveGetter.invokeExact(owner));
+			} else if (wirePrimitive == float.class) {
+				((FloatMarshaller) marshaller).writeFloat(out, (float) primitiveGetter.invokeExact(owner));
+			} else {
+				((DoubleMarshaller) marshaller).writeDouble(out, (double) primitiveGetter.invokeExact(owner));
+			}
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+	
+	private void unmarshalPrimitive(Object owner, ByteBuf in) {
+		try {
+			if (wirePrimitive == int.class) {
+				primitiveSetter.invokeExact(owner, ((IntMarshaller) marshaller).readInt(in));
+			} else if (wirePrimitive == long.class) {
+				primitiveSetter.invokeExact(owner, ((LongMarshaller) marshaller).readLong(in));
+			} else if (wirePrimitive == float.class) {
+				primitiveSetter.invokeExact(owner, ((FloatMarshaller) marshaller).readFloat(in));
+			} else {
+				primitiveSetter.invokeExact(owner, ((DoubleMarshaller) marshaller).readDouble(in));
+			}
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
 	}
 	
 	
@@ -107,4 +400,16 @@ class WireField<T> {
 	public Class<? extends T> getType() {
 		return type;
 	}
+
+	public Field getField() {
+		return f;
+	}
+	
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	public Marshaller<T> getMarshaller() {
+		return marshaller;
+	}
 }
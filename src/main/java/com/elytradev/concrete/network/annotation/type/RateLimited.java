@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network.annotation.type;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Specifies that the server should only accept so many of a Message per
+ * second from each player, with a token bucket. What happens to Messages over
+ * the limit is up to {@link #overflow()}.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimited {
+	public enum Overflow {
+		/**
+		 * Messages over the limit are dropped before being decoded. Messages
+		 * with {@link com.elytradev.concrete.network.annotation.type.Delta Delta}
+		 * or {@link com.elytradev.concrete.network.annotation.field.Interned Interned}
+		 * fields are still decoded before being dropped, as later Messages on
+		 * the same connection depend on them.
+		 */
+		DROP,
+		/**
+		 * Only the latest Message over the limit is kept, and handled once
+		 * the limit allows it.
+		 */
+		COALESCE,
+		/**
+		 * The player is disconnected.
+		 */
+		DISCONNECT
+	}
+	
+	/**
+	 * How many Messages per second are accepted, on average.
+	 */
+	double perSecond();
+	/**
+	 * How many Messages can be accepted at once after a quiet period. 0 means
+	 * the same as {@link #perSecond()}, rounded up.
+	 */
+	int burst() default 0;
+	Overflow overflow() default Overflow.DROP;
+}
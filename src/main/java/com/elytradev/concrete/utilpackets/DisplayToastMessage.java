@@ -32,6 +32,7 @@ package com.elytradev.concrete.utilpackets;
 import com.elytradev.concrete.common.ConcreteToast;
 import com.elytradev.concrete.network.Message;
 import com.elytradev.concrete.network.NetworkContext;
+import com.elytradev.concrete.network.annotation.field.Interned;
 import com.elytradev.concrete.network.annotation.field.MarshalledAs;
 import com.elytradev.concrete.network.annotation.type.ReceivedOn;
 import net.minecraft.client.Minecraft;
@@ -55,6 +56,7 @@ public class DisplayToastMessage extends Message {
 	@MarshalledAs("i32")
 	public int subtitleColor;
 
+	@Interned
 	public String texture;
 	@MarshalledAs("i32")
 	public int textureX;
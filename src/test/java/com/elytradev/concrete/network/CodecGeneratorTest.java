@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.annotation.field.Bits;
+import com.elytradev.concrete.network.annotation.field.MarshalledAs;
+import com.elytradev.concrete.network.annotation.field.Optional;
+import com.elytradev.concrete.network.annotation.field.Quantized;
+import com.elytradev.concrete.network.annotation.type.ReceivedOn;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class CodecGeneratorTest {
+	public enum Color { RED, GREEN, BLUE, CYAN, MAGENTA }
+	
+	@ReceivedOn(Side.CLIENT)
+	public static class Fixture extends Message {
+		public boolean b0;
+		@Bits(5) public int five;
+		public boolean b1;
+		@Bits(value = 7, min = -64) public byte signed;
+		@Bits(40) public long big;
+		public boolean b2;
+		@Quantized(min = -1, max = 1, bits = 10) public float q;
+		@Quantized(min = 0, max = 360, bits = 12) public double angle;
+		public boolean b3;
+		public Color color;
+		@Optional public Color optColor;
+		public boolean b4;
+		@Optional @Bits(value = 3, min = 10) public Integer optBits;
+		@Optional @Quantized(min = 0, max = 1, bits = 4) public Double optQuantized;
+		public boolean b5;
+		@Optional public String optString;
+		@MarshalledAs("varint") public int varint;
+		public boolean b6;
+		public String s;
+		
+		public Fixture() {
+			super(null);
+		}
+		
+		@Override
+		protected void handle(EntityPlayer sender) {}
+	}
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	private static Fixture full() {
+		Fixture f = new Fixture();
+		f.b0 = true;
+		f.five = 31;
+		f.b1 = false;
+		f.signed = -64;
+		f.big = (1L << 40) - 3;
+		f.b2 = true;
+		f.q = 0.3f;
+		f.angle = 123.4;
+		f.b3 = true;
+		f.color = Color.MAGENTA;
+		f.optColor = Color.GREEN;
+		f.b4 = false;
+		f.optBits = 17;
+		f.optQuantized = 0.75;
+		f.b5 = true;
+		f.optString = "optional";
+		f.varint = 300;
+		f.b6 = true;
+		f.s = "hello";
+		return f;
+	}
+	
+	private static Fixture sparse() {
+		Fixture f = new Fixture();
+		f.b6 = true;
+		f.signed = 63;
+		f.color = Color.RED;
+		f.s = "";
+		return f;
+	}
+	
+	private static byte[] encode(MessageCodec codec, Message m) {
+		ByteBuf buf = Unpooled.buffer();
+		codec.encode(m, buf);
+		return ByteBufUtil.getBytes(buf);
+	}
+	
+	private static void assertSameEncoding(Fixture f) {
+		MessageCodec reflective = new ReflectiveCodec(WireField.forClass(Fixture.class));
+		MessageCodec generated = CodecGenerator.generate(Fixture.class, WireField.forClass(Fixture.class));
+		Assert.assertNotNull("Codec was not generated", generated);
+		byte[] expected = encode(reflective, f);
+		Assert.assertArrayEquals(expected, encode(generated, f));
+		
+		Fixture viaReflective = new Fixture();
+		reflective.decode(viaReflective, Unpooled.wrappedBuffer(expected));
+		Fixture viaGenerated = new Fixture();
+		generated.decode(viaGenerated, Unpooled.wrappedBuffer(expected));
+		Assert.assertArrayEquals(expected, encode(reflective, viaGenerated));
+		Assert.assertArrayEquals(expected, encode(generated, viaReflective));
+	}
+	
+	@Test
+	public void sameBytesWithEverythingSet() {
+		assertSameEncoding(full());
+	}
+	
+	@Test
+	public void sameBytesWithOptionalsNull() {
+		assertSameEncoding(sparse());
+	}
+	
+	@Test
+	public void sameBytesWithExtremes() {
+		Fixture f = full();
+		f.five = 0;
+		f.big = 0;
+		f.q = -5;
+		f.angle = 360;
+		f.optBits = 10;
+		f.optQuantized = Double.NaN;
+		f.varint = -1;
+		assertSameEncoding(f);
+	}
+	
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+public class ConnectionDictionaryTest {
+	private ConnectionState sender;
+	private ConnectionState receiver;
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	@Before
+	public void connect() {
+		sender = new ConnectionState(null);
+		receiver = new ConnectionState(null);
+	}
+	
+	private ByteBuf writeStrings(List<String> strings) {
+		ByteBuf buf = Unpooled.buffer();
+		ConnectionState prev = ConnectionDictionary.enter(sender);
+		try {
+			for (String s : strings) {
+				ConnectionDictionary.writeString(buf, s);
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		return buf;
+	}
+	
+	private List<String> readStrings(ByteBuf buf, int count) {
+		List<String> out = Lists.newArrayList();
+		ConnectionState prev = ConnectionDictionary.enter(receiver);
+		try {
+			for (int i = 0; i < count; i++) {
+				out.add(ConnectionDictionary.readString(buf));
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		Assert.assertFalse("Trailing bytes after decoding", buf.isReadable());
+		return out;
+	}
+	
+	private String roundTrip(String s) {
+		return readStrings(writeStrings(Lists.newArrayList(s)), 1).get(0);
+	}
+	
+	private static int tagOf(ByteBuf buf) {
+		return ByteBufUtils.readVarInt(buf.duplicate(), 5);
+	}
+	
+	private static List<String> distinct(int count) {
+		List<String> out = Lists.newArrayList();
+		for (int i = 0; i < count; i++) {
+			out.add("string" + i);
+		}
+		return out;
+	}
+	
+	@Test
+	public void repeatsAreSentAsIds() {
+		ByteBuf first = writeStrings(Lists.newArrayList("hello"));
+		Assert.assertEquals(1, tagOf(first));
+		Assert.assertEquals("hello", readStrings(first, 1).get(0));
+		ByteBuf second = writeStrings(Lists.newArrayList("hello"));
+		Assert.assertEquals(2, tagOf(second));
+		Assert.assertEquals("hello", readStrings(second, 1).get(0));
+	}
+	
+	@Test
+	public void leastRecentlyUsedIdIsReused() {
+		List<String> strings = distinct(ConnectionDictionary.STRING_CAPACITY);
+		Assert.assertEquals(strings, readStrings(writeStrings(strings), strings.size()));
+		// string0 is now the most recently used, so string1 is the one to go
+		Assert.assertEquals("string0", roundTrip("string0"));
+		
+		ByteBuf overflow = writeStrings(Lists.newArrayList("overflow"));
+		Assert.assertEquals(1 + (1 * 2), tagOf(overflow));
+		Assert.assertEquals("overflow", readStrings(overflow, 1).get(0));
+		
+		ByteBuf kept = writeStrings(Lists.newArrayList("string0"));
+		Assert.assertEquals(2, tagOf(kept));
+		Assert.assertEquals("string0", readStrings(kept, 1).get(0));
+		
+		ByteBuf evicted = writeStrings(Lists.newArrayList("string1"));
+		Assert.assertEquals(1, tagOf(evicted) & 1);
+		Assert.assertEquals("string1", readStrings(evicted, 1).get(0));
+	}
+	
+	@Test
+	public void manyStringsDecodeInWireOrder() {
+		Random r = new Random(7);
+		List<String> strings = Lists.newArrayList();
+		for (int i = 0; i < 20000; i++) {
+			// mostly recent strings, with enough distinct ones to keep evicting
+			strings.add("s" + (r.nextBoolean() ? r.nextInt(200) : r.nextInt(5000)));
+		}
+		Assert.assertEquals(strings, readStrings(writeStrings(strings), strings.size()));
+		List<String> more = distinct(3000);
+		for (String s : more) {
+			Assert.assertEquals(s, roundTrip(s));
+		}
+	}
+	
+	@Test
+	public void longStringsAreNotRemembered() {
+		String s = Strings.repeat("x", ConnectionDictionary.MAX_STRING_LENGTH + 1);
+		ByteBuf buf = writeStrings(Lists.newArrayList(s, s));
+		Assert.assertEquals(0, tagOf(buf));
+		Assert.assertEquals(Lists.newArrayList(s, s), readStrings(buf, 2));
+	}
+	
+	@Test(expected = BadMessageException.class)
+	public void unknownIdIsRejected() {
+		writeStrings(Lists.newArrayList("hello"));
+		readStrings(writeStrings(Lists.newArrayList("hello")), 1);
+	}
+	
+	private static NBTTagCompound tag(String value) {
+		NBTTagCompound tag = new NBTTagCompound();
+		tag.setString("value", value);
+		return tag;
+	}
+	
+	private ByteBuf writeTags(List<NBTTagCompound> tags) {
+		ByteBuf buf = Unpooled.buffer();
+		ConnectionState prev = ConnectionDictionary.enter(sender);
+		try {
+			for (NBTTagCompound tag : tags) {
+				ConnectionDictionary.writeTag(buf, tag);
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		return buf;
+	}
+	
+	private List<NBTTagCompound> readTags(ByteBuf buf, int count) {
+		List<NBTTagCompound> out = Lists.newArrayList();
+		ConnectionState prev = ConnectionDictionary.enter(receiver);
+		try {
+			for (int i = 0; i < count; i++) {
+				out.add(ConnectionDictionary.readTag(buf));
+			}
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		Assert.assertFalse("Trailing bytes after decoding", buf.isReadable());
+		return out;
+	}
+	
+	@Test
+	public void tagsReuseLeastRecentlyUsedId() {
+		List<NBTTagCompound> tags = Lists.newArrayList();
+		for (int i = 0; i < ConnectionDictionary.TAG_CAPACITY; i++) {
+			tags.add(tag("tag" + i));
+		}
+		Assert.assertEquals(tags, readTags(writeTags(tags), tags.size()));
+		// tag0 is now the most recently used, so tag1 is the one to go
+		ByteBuf kept = writeTags(Lists.newArrayList(tag("tag0")));
+		Assert.assertEquals(3, tagOf(kept));
+		Assert.assertEquals(tag("tag0"), readTags(kept, 1).get(0));
+		
+		ByteBuf overflow = writeTags(Lists.newArrayList(tag("overflow")));
+		Assert.assertEquals(2 + (1 * 2), tagOf(overflow));
+		Assert.assertEquals(tag("overflow"), readTags(overflow, 1).get(0));
+		
+		ByteBuf evicted = writeTags(Lists.newArrayList(tag("tag1")));
+		Assert.assertEquals(0, tagOf(evicted) & 1);
+		Assert.assertEquals(tag("tag1"), readTags(evicted, 1).get(0));
+	}
+	
+	@Test
+	public void manyTagsDecodeInWireOrder() {
+		Random r = new Random(7);
+		List<NBTTagCompound> tags = Lists.newArrayList();
+		for (int i = 0; i < 5000; i++) {
+			tags.add(r.nextInt(10) == 0 ? null : tag("t" + (r.nextBoolean() ? r.nextInt(50) : r.nextInt(1000))));
+		}
+		Assert.assertEquals(tags, readTags(writeTags(tags), tags.size()));
+	}
+	
+	@Test
+	public void receivedTagsAreCopies() {
+		NBTTagCompound first = readTags(writeTags(Lists.newArrayList(tag("a"))), 1).get(0);
+		first.setString("value", "changed");
+		Assert.assertEquals(tag("a"), readTags(writeTags(Lists.newArrayList(tag("a"))), 1).get(0));
+	}
+	
+	@Test
+	public void largeTagsAreNotRemembered() {
+		NBTTagCompound big = tag(Strings.repeat("x", ConnectionDictionary.MAX_TAG_SIZE));
+		ByteBuf buf = writeTags(Lists.newArrayList(big, big));
+		Assert.assertEquals(1, tagOf(buf));
+		Assert.assertEquals(Lists.newArrayList(big, big), readTags(buf, 2));
+	}
+	
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Floats;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.Shorts;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+
+public class DefaultMarshallersTest {
+	private static final Random random = new Random(3);
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	private static <T> Marshaller<T> get(String name) {
+		Marshaller<T> m = DefaultMarshallers.getByName(name);
+		Assert.assertNotNull("No marshaller named " + name, m);
+		return m;
+	}
+	
+	private static <T> byte[] marshal(Marshaller<T> m, T value, boolean direct) {
+		ByteBuf buf = direct ? Unpooled.directBuffer() : Unpooled.buffer();
+		try {
+			m.marshal(buf, value);
+			return ByteBufUtil.getBytes(buf);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * Checks the array marshaller writes what the list one does, into both
+	 * heap and direct buffers, and reads it back.
+	 */
+	private static <A> void assertSameAsList(String array, A a, String list, List<?> li) {
+		Marshaller<A> am = get(array);
+		Marshaller<List<?>> lm = get(list);
+		byte[] expected = marshal(lm, li, false);
+		Assert.assertArrayEquals(array, expected, marshal(am, a, false));
+		Assert.assertArrayEquals(array, expected, marshal(am, a, true));
+		ByteBuf in = Unpooled.wrappedBuffer(expected);
+		Assert.assertArrayEquals(array, expected, marshal(am, am.unmarshal(in), false));
+		Assert.assertFalse(in.isReadable());
+	}
+	
+	@Test
+	public void bulkArraysMatchLists() {
+		for (int length : new int[] { 0, 1, 7, 1000 }) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			short[] shorts = new short[length];
+			int[] ints = new int[length];
+			long[] longs = new long[length];
+			float[] floats = new float[length];
+			double[] doubles = new double[length];
+			for (int i = 0; i < length; i++) {
+				shorts[i] = (short) random.nextInt();
+				ints[i] = random.nextInt();
+				longs[i] = random.nextLong();
+				floats[i] = random.nextFloat() * 1000 - 500;
+				doubles[i] = random.nextDouble() * 1000 - 500;
+			}
+			assertSameAsList("i8-array", bytes, "i8-list", Bytes.asList(bytes));
+			assertSameAsList("i16-array", shorts, "i16-list", Shorts.asList(shorts));
+			assertSameAsList("i32-array", ints, "i32-list", Ints.asList(ints));
+			assertSameAsList("i64-array", longs, "i64-list", Longs.asList(longs));
+			assertSameAsList("f32-array", floats, "f32-list", Floats.asList(floats));
+			assertSameAsList("f64-array", doubles, "f64-list", Doubles.asList(doubles));
+			assertSameAsList("varint-array", ints, "varint-list", Ints.asList(ints));
+			assertSameAsList("varint-zigzag-array", ints, "varint-zigzag-list", Ints.asList(ints));
+			assertSameAsList("u32-array", longs, "u32-list", Longs.asList(longs));
+		}
+	}
+	
+	@Test
+	public void nullArraysAreEmpty() {
+		Assert.assertArrayEquals(new byte[] { 0 }, marshal(get("i32-array"), null, false));
+		Assert.assertArrayEquals(new byte[] { 0 }, marshal(get("sorted-ints"), null, false));
+		Assert.assertArrayEquals(new byte[] { 0 }, marshal(get("bitset"), null, false));
+	}
+	
+	@Test
+	public void sortedIntsAreZigZagDifferences() {
+		int[] ints = { -5, 0, 3, 3, 100, 70000, 12, Integer.MIN_VALUE, Integer.MAX_VALUE };
+		List<Integer> deltas = Lists.newArrayList();
+		int last = 0;
+		for (int i : ints) {
+			deltas.add(i - last);
+			last = i;
+		}
+		assertSameAsList("sorted-ints", ints, "varint-zigzag-list", deltas);
+	}
+	
+	@Test
+	public void bitSetIsItsBytes() {
+		BitSet bits = new BitSet();
+		bits.set(0);
+		bits.set(9);
+		bits.set(200);
+		byte[] expected = marshal(get("bytes"), bits.toByteArray(), false);
+		Marshaller<BitSet> m = get("bitset");
+		Assert.assertArrayEquals(expected, marshal(m, bits, false));
+		Assert.assertEquals(bits, m.unmarshal(Unpooled.wrappedBuffer(expected)));
+	}
+	
+	@Test
+	public void setsMatchListsInIterationOrder() {
+		Set<String> set = Sets.newLinkedHashSet(Lists.newArrayList("b", "a", "c"));
+		Marshaller<Set<String>> m = get("string-set");
+		byte[] expected = marshal(get("string-list"), Lists.newArrayList(set), false);
+		Assert.assertArrayEquals(expected, marshal(m, set, false));
+		Assert.assertEquals(Lists.newArrayList(set), Lists.newArrayList(m.unmarshal(Unpooled.wrappedBuffer(expected))));
+	}
+	
+	@Test
+	public void mapsRoundTrip() {
+		Map<String, Integer> map = Maps.newLinkedHashMap();
+		map.put("one", 1);
+		map.put("two", 2);
+		map.put("minus", -1);
+		Marshaller<Map<String, Integer>> m = get("string:varint-map");
+		ByteBuf buf = Unpooled.wrappedBuffer(marshal(m, map, false));
+		Assert.assertEquals(3, ByteBufUtils.readVarInt(buf.duplicate(), 5));
+		Map<String, Integer> got = m.unmarshal(buf);
+		Assert.assertEquals(map, got);
+		Assert.assertEquals(Lists.newArrayList(map.keySet()), Lists.newArrayList(got.keySet()));
+		Assert.assertFalse(buf.isReadable());
+	}
+	
+	@Test
+	public void lengthsLongerThanTheMessageAreRejected() {
+		for (String name : new String[] { "bytes", "i16-array", "i32-array", "i64-array", "f32-array", "f64-array",
+				"varint-array", "sorted-ints", "bitset", "string-set", "string:varint-map" }) {
+			Marshaller<?> m = get(name);
+			ByteBuf buf = Unpooled.buffer();
+			ByteBufUtils.writeVarInt(buf, 100, 5);
+			buf.writeZero(10);
+			try {
+				m.unmarshal(buf);
+				Assert.fail(name + " accepted a length longer than the message");
+			} catch (BadMessageException e) {
+				// expected
+			}
+		}
+	}
+	
+	@Test
+	public void lengthsThatFitAreAccepted() {
+		ByteBuf buf = Unpooled.buffer();
+		ByteBufUtils.writeVarInt(buf, 2, 5);
+		buf.writeInt(1);
+		buf.writeInt(2);
+		Assert.assertArrayEquals(new int[] { 1, 2 }, DefaultMarshallers.<int[]>getByName("i32-array").unmarshal(buf));
+	}
+	
+}
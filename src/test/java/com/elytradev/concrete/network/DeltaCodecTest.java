@@ -0,0 +1,246 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.DeltaCodec.ReceivedHistory;
+import com.elytradev.concrete.network.DeltaCodec.SentHistory;
+import com.elytradev.concrete.network.annotation.field.DeltaKey;
+import com.elytradev.concrete.network.annotation.field.MarshalledAs;
+import com.elytradev.concrete.network.annotation.field.Optional;
+import com.elytradev.concrete.network.annotation.type.ReceivedOn;
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class DeltaCodecTest {
+	@ReceivedOn(Side.CLIENT)
+	public static class Fixture extends Message {
+		@DeltaKey @MarshalledAs("varint") public int key;
+		public String name;
+		@MarshalledAs("i32") public int count;
+		public boolean flag;
+		@Optional public String note;
+		@MarshalledAs("string-list") public List<String> tags;
+		
+		public Fixture() {
+			super(null);
+		}
+		
+		public Fixture(int key, String name, int count, boolean flag, String note, List<String> tags) {
+			super(null);
+			this.key = key;
+			this.name = name;
+			this.count = count;
+			this.flag = flag;
+			this.note = note;
+			this.tags = tags;
+		}
+		
+		@Override
+		protected void handle(EntityPlayer sender) {}
+		
+		@Override
+		public String toString() {
+			return key + "/" + name + "/" + count + "/" + flag + "/" + note + "/" + tags;
+		}
+	}
+	
+	private DeltaCodec codec;
+	private SentHistory sent;
+	private ReceivedHistory received;
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	private void reset(int capacity) {
+		codec = new DeltaCodec(Fixture.class, WireField.forClass(Fixture.class), capacity);
+		sent = codec.newSentHistory();
+		received = codec.newReceivedHistory();
+	}
+	
+	private ByteBuf encode(Fixture f) {
+		ByteBuf buf = Unpooled.buffer();
+		codec.encode(f, buf, sent);
+		return buf;
+	}
+	
+	private Fixture decode(ByteBuf buf) {
+		Fixture f = new Fixture();
+		codec.decode(f, buf, received);
+		Assert.assertFalse("Trailing bytes after decoding", buf.isReadable());
+		return f;
+	}
+	
+	private Fixture roundTrip(Fixture f) {
+		Fixture got = decode(encode(f));
+		Assert.assertEquals(f.toString(), got.toString());
+		return got;
+	}
+	
+	private static boolean isTracked(ByteBuf buf) {
+		return (buf.getByte(0) & 1) != 0;
+	}
+	
+	private static boolean isNewBase(ByteBuf buf) {
+		return (buf.getByte(0) & 2) != 0;
+	}
+	
+	@Test
+	public void firstCopyIsANewBase() {
+		reset(4);
+		ByteBuf buf = encode(new Fixture(1, "one", 5, true, "note", Lists.newArrayList("a")));
+		Assert.assertTrue(isTracked(buf));
+		Assert.assertTrue(isNewBase(buf));
+		decode(buf);
+	}
+	
+	@Test
+	public void onlyChangedFieldsAreSent() {
+		reset(4);
+		Fixture f = new Fixture(1, "a fairly long name", 5, true, "note", Lists.newArrayList("a", "b"));
+		ByteBuf full = encode(f);
+		decode(full);
+		
+		ByteBuf same = encode(f);
+		Assert.assertTrue(isTracked(same));
+		Assert.assertFalse(isNewBase(same));
+		Assert.assertTrue(same.writerIndex() < full.writerIndex());
+		Assert.assertEquals(f.toString(), decode(same).toString());
+		
+		f.count = 6;
+		ByteBuf count = encode(f);
+		Assert.assertEquals(same.writerIndex() + 4, count.writerIndex());
+		Assert.assertEquals(f.toString(), decode(count).toString());
+		
+		f.flag = false;
+		f.note = null;
+		roundTrip(f);
+		f.note = "back";
+		roundTrip(f);
+	}
+	
+	@Test
+	public void inPlaceMutationIsNoticed() {
+		reset(4);
+		Fixture f = new Fixture(1, "name", 5, false, null, Lists.newArrayList("a"));
+		roundTrip(f);
+		ByteBuf same = encode(f);
+		decode(same);
+		f.tags.add("b");
+		ByteBuf mutated = encode(f);
+		Assert.assertTrue(mutated.writerIndex() > same.writerIndex());
+		Assert.assertEquals(f.toString(), decode(mutated).toString());
+	}
+	
+	@Test
+	public void receivedValuesAreNotShared() {
+		reset(4);
+		Fixture f = new Fixture(1, "name", 5, false, null, Lists.newArrayList("a"));
+		Fixture first = roundTrip(f);
+		first.tags.add("changed by a handler");
+		f.count = 6;
+		Fixture second = decode(encode(f));
+		Assert.assertEquals(Lists.newArrayList("a"), second.tags);
+		Assert.assertNotSame(first.tags, second.tags);
+		second.tags.clear();
+		f.count = 7;
+		Assert.assertEquals(f.toString(), decode(encode(f)).toString());
+	}
+	
+	@Test
+	public void untrackedCopiesAreSentInFull() {
+		reset(4);
+		Fixture f = new Fixture(1, "name", 5, false, null, Lists.newArrayList("a"));
+		ByteBuf buf = Unpooled.buffer();
+		codec.encode(f, buf, null);
+		Assert.assertFalse(isTracked(buf));
+		Assert.assertEquals(f.toString(), decode(buf).toString());
+		Assert.assertTrue(received.isEmpty());
+		Assert.assertTrue(isNewBase(encode(f)));
+	}
+	
+	@Test
+	public void evictedKeysStartANewBase() {
+		reset(2);
+		roundTrip(new Fixture(1, "one", 1, false, null, Lists.newArrayList()));
+		roundTrip(new Fixture(2, "two", 2, false, null, Lists.newArrayList()));
+		roundTrip(new Fixture(1, "one", 3, false, null, Lists.newArrayList()));
+		// 1 was added first, so it goes even though it was updated last
+		roundTrip(new Fixture(3, "three", 3, false, null, Lists.newArrayList()));
+		Assert.assertEquals(sent.size(), received.size());
+		
+		ByteBuf again = encode(new Fixture(1, "one", 3, false, null, Lists.newArrayList()));
+		Assert.assertTrue(isNewBase(again));
+		decode(again);
+		ByteBuf two = encode(new Fixture(2, "two", 2, false, null, Lists.newArrayList()));
+		Assert.assertTrue(isNewBase(two));
+		decode(two);
+		ByteBuf three = encode(new Fixture(3, "three", 3, false, null, Lists.newArrayList()));
+		Assert.assertTrue(isNewBase(three));
+		decode(three);
+	}
+	
+	@Test
+	public void randomUpdatesStayInStep() {
+		reset(4);
+		Random r = new Random(42);
+		String[] names = { "a", "b", "c" };
+		for (int i = 0; i < 5000; i++) {
+			List<String> tags = Lists.newArrayList();
+			for (int j = r.nextInt(3); j > 0; j--) {
+				tags.add(names[r.nextInt(names.length)]);
+			}
+			roundTrip(new Fixture(r.nextInt(7), names[r.nextInt(names.length)], r.nextInt(3), r.nextBoolean(),
+					r.nextBoolean() ? null : names[r.nextInt(names.length)], tags));
+		}
+	}
+	
+	@Test(expected = BadMessageException.class)
+	public void deltaForUnknownKeyIsRejected() {
+		reset(4);
+		Fixture f = new Fixture(1, "name", 5, false, null, Lists.newArrayList());
+		encode(f);
+		decode(encode(f));
+	}
+	
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.annotation.field.Bits;
+import com.elytradev.concrete.network.annotation.field.MarshalledAs;
+import com.elytradev.concrete.network.annotation.field.Quantized;
+import com.elytradev.concrete.network.annotation.type.Asynchronous;
+import com.elytradev.concrete.network.annotation.type.ReceivedOn;
+import com.elytradev.concrete.network.exception.BadMessageException;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class LoopbackTest {
+	@ReceivedOn(Side.SERVER)
+	@Asynchronous
+	public static class Fixture extends Message {
+		static final List<Fixture> handled = Lists.newArrayList();
+		
+		@Quantized(min = 0, max = 1, bits = 4) public float fraction;
+		@Bits(4) public int small;
+		@MarshalledAs("u8") public int unsigned;
+		@MarshalledAs("u8") public Integer boxed;
+		
+		public Fixture(NetworkContext ctx) {
+			super(ctx);
+		}
+		
+		@Override
+		protected void handle(EntityPlayer sender) {
+			handled.add(this);
+		}
+	}
+	
+	private static int channels = 0;
+	
+	private NetworkContext ctx;
+	private RecordingManager manager;
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	@Before
+	public void connect() {
+		ctx = NetworkContext.forChannel("test:loop" + channels++).enableLoopback();
+		ctx.register(Fixture.class);
+		manager = new RecordingManager(true);
+		Fixture.handled.clear();
+	}
+	
+	private Fixture newFixture() {
+		Fixture f = new Fixture(ctx);
+		f.fraction = 0.5f;
+		f.small = 3;
+		f.unsigned = 7;
+		f.boxed = 7;
+		return f;
+	}
+	
+	/**
+	 * Sends the given Message over the local connection and picks up the
+	 * copy that comes out the other end.
+	 */
+	private Fixture loop(Fixture f) {
+		ctx.sendToServer(manager, f);
+		Assert.assertEquals(1, manager.sent.size());
+		ByteBuf frame = manager.sent.get(0);
+		Assert.assertEquals(NetworkContext.LOOPBACK_ID, frame.getUnsignedByte(frame.readerIndex()));
+		ctx.receive(Side.SERVER, frame.duplicate(), ctx.getState(manager), null);
+		Assert.assertEquals(1, Fixture.handled.size());
+		Fixture copy = Fixture.handled.get(0);
+		Assert.assertNotSame(f, copy);
+		return copy;
+	}
+	
+	@Test
+	public void quantizedFloatsAreRounded() {
+		Fixture f = newFixture();
+		f.fraction = 0.123f;
+		// 0.123 is closest to step 2 of 15
+		Assert.assertEquals((float) (2 / 15.0), loop(f).fraction, 0);
+	}
+	
+	@Test
+	public void narrowedIntsAreTruncated() {
+		Fixture f = newFixture();
+		f.unsigned = 300;
+		f.boxed = 301;
+		Fixture copy = loop(f);
+		Assert.assertEquals(300 & 0xFF, copy.unsigned);
+		Assert.assertEquals(Integer.valueOf(301 & 0xFF), copy.boxed);
+	}
+	
+	@Test(expected = BadMessageException.class)
+	public void outOfRangeBitsAreRejected() {
+		Fixture f = newFixture();
+		f.small = 16;
+		loop(f);
+	}
+	
+}
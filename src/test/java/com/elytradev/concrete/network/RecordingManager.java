@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.minecraft.network.EnumPacketDirection;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.client.CPacketCustomPayload;
+import net.minecraft.network.play.server.SPacketCustomPayload;
+
+/**
+ * A connection that keeps the payloads sent over it instead of writing them
+ * anywhere.
+ */
+class RecordingManager extends NetworkManager {
+	private final Channel channel = new EmbeddedChannel();
+	private final boolean local;
+	final List<ByteBuf> sent = Collections.synchronizedList(Lists.newArrayList());
+	
+	RecordingManager(boolean local) {
+		super(EnumPacketDirection.CLIENTBOUND);
+		this.local = local;
+	}
+	
+	@Override
+	public Channel channel() {
+		return channel;
+	}
+	
+	@Override
+	public boolean isChannelOpen() {
+		return true;
+	}
+	
+	@Override
+	public boolean isLocalChannel() {
+		return local;
+	}
+	
+	@Override
+	public void sendPacket(Packet<?> packet) {
+		if (packet instanceof SPacketCustomPayload) {
+			sent.add(((SPacketCustomPayload) packet).getBufferData());
+		} else {
+			sent.add(((CPacketCustomPayload) packet).getBufferData());
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016-2018:
+ * 	Una Thompson (unascribed),
+ * 	Isaac Ellingson (Falkreon),
+ * 	Jamie Mansfield (jamierocks),
+ * 	Alex Ponebshek (capitalthree),
+ * 	and contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.elytradev.concrete.network;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.elytradev.concrete.network.annotation.field.Interned;
+import com.elytradev.concrete.network.annotation.type.ReceivedOn;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class SendOrderTest {
+	@ReceivedOn(Side.CLIENT)
+	public static class Fixture extends Message {
+		@Interned public String name;
+		
+		public Fixture(NetworkContext ctx) {
+			super(ctx);
+		}
+		
+		@Override
+		protected void handle(EntityPlayer sender) {}
+	}
+	
+	private static int channels = 0;
+	
+	private NetworkContext ctx;
+	private RecordingManager manager;
+	private ConnectionState state;
+	
+	@BeforeClass
+	public static void init() {
+		TestEnvironment.init();
+	}
+	
+	private void connect(boolean batching) {
+		ctx = NetworkContext.forChannel("test:order" + channels++);
+		if (batching) {
+			ctx.enableBatching();
+		}
+		ctx.register(Fixture.class);
+		manager = new RecordingManager(false);
+		state = ctx.getState(manager);
+		state.schemaSent.set(true);
+		state.schemaConfirmed = true;
+	}
+	
+	private void send(String name, boolean onServerThread) {
+		Fixture f = new Fixture(ctx);
+		f.name = name;
+		ctx.send(state, ctx.prepare(f), onServerThread);
+	}
+	
+	private void sendOffThread(String name) throws InterruptedException {
+		Thread t = new Thread(() -> send(name, false));
+		t.start();
+		t.join();
+	}
+	
+	/**
+	 * Decodes everything sent so far in the order it was sent, as the other
+	 * side would, which fails if an interned id arrives before its string.
+	 */
+	private List<String> receive() {
+		ConnectionState receiver = new ConnectionState(null);
+		List<String> names = Lists.newArrayList();
+		synchronized (manager.sent) {
+			for (ByteBuf frame : manager.sent) {
+				receive(frame.duplicate(), receiver, names);
+			}
+		}
+		return names;
+	}
+	
+	private void receive(ByteBuf payload, ConnectionState receiver, List<String> names) {
+		int id = payload.readUnsignedByte();
+		if (id == NetworkContext.BATCH_ID) {
+			while (payload.isReadable()) {
+				receive(payload.readSlice(ByteBufUtils.readVarInt(payload, 5)), receiver, names);
+			}
+			return;
+		}
+		Fixture f = new Fixture(ctx);
+		ConnectionState prev = ConnectionDictionary.enter(receiver);
+		try {
+			ctx.typesById.get(id).codec.decode(f, payload);
+		} finally {
+			ConnectionDictionary.exit(prev);
+		}
+		Assert.assertFalse("Trailing bytes after decoding", payload.isReadable());
+		names.add(f.name);
+	}
+	
+	@Test
+	public void offThreadSendWaitsForBatch() throws InterruptedException {
+		connect(true);
+		send("shared", true);
+		sendOffThread("shared");
+		Assert.assertTrue("Sent before the batch was flushed", manager.sent.isEmpty());
+		ctx.onServerTick(new ServerTickEvent(Phase.END));
+		Assert.assertEquals(Lists.newArrayList("shared", "shared"), receive());
+	}
+	
+	@Test
+	public void offThreadSendsKeepEncodeOrder() throws InterruptedException {
+		connect(false);
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 8; i++) {
+			int n = i;
+			threads.add(new Thread(() -> {
+				for (int j = 0; j < 500; j++) {
+					send("name" + ((n + j) % 20), false);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Assert.assertEquals(8 * 500, receive().size());
+	}
+	
+}